@@ -5,5 +5,22 @@ import com.android.builder.model.ClassField
 /**
  * BuildConfig class field.
  * This class similar to the class [ClassField]. However, We can change it and store the other information.
+ * It is a data class, so the same field collected from different variants is only kept once.
+ *
+ * @param value The full marker of the field, e.g., `BuildConfig#app#https://help.com`
+ * @param id The id of the compact marker, or [NO_ID] if the field is wrapped with the full marker.
  */
-class BuildConfigClassField(var module: String, var name: String, var type: String, var value: String)
\ No newline at end of file
+data class BuildConfigClassField(
+    val module: String,
+    val name: String,
+    val type: String,
+    val value: String,
+    val id: Int = NO_ID
+) {
+    companion object {
+        /**
+         * The ids start from 1, so a field read by gson without an id has no id either.
+         */
+        const val NO_ID = 0
+    }
+}
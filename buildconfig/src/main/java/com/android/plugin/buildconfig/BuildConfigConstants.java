@@ -6,8 +6,18 @@ public interface BuildConfigConstants {
     String CLASS_FIELD_IMPL="com.android.builder.internal.ClassFieldImpl";
     String TYPE_STRING = "String";
     String BUILD_CONFIG = "BuildConfig";
+    String BUILD_CONFIG_MARKER_PREFIX = "`" + BUILD_CONFIG + "#";
     String BUILD_CONFIG_VALUE_PATTERN_STRING = "`" + BUILD_CONFIG + "#(?<module>[\\w-]+)#(?<value>.+?)`";
     Pattern BUILD_CONFIG_VALUE_PATTERN = Pattern.compile(BUILD_CONFIG_VALUE_PATTERN_STRING);
+    /**
+     * The compact marker: a field id between two U+E000 private use characters, e.g., U+E000 12 U+E000.
+     * The id is assigned by the {@link BuildConfigFieldService}, and the service maps it back to the full marker.
+     */
+    char COMPACT_MARKER_DELIMITER = '\uE000';
+    /**
+     * The delimiter as it is written to the BuildConfig source file.
+     */
+    String COMPACT_MARKER_SOURCE_DELIMITER = "\\uE000";
     String CLINIT = "<clinit>";
     String INIT = "<init>";
     String STRING_DESCRIPTOR = "Ljava/lang/String;";
@@ -16,4 +26,34 @@ public interface BuildConfigConstants {
     String DELEGATE_CLASS_DESC = DELEGATE_PACKAGE_NAME.replace('.', '/') + "/" + DELEGATE_CLASS_NAME;
     String DELEGATE_METHOD_NAME = "getString";
     String DELEGATE_METHOD_DESCRIPTOR = "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;";
+    String DELEGATE_GENERATION_FIELD = "generation";
+    String DELEGATE_SLOT_CLASS_DESC = DELEGATE_CLASS_DESC + "$Slot";
+    /**
+     * The version of the rewritten bytecode. Bump it whenever the visitors change their output.
+     */
+    int REWRITE_VERSION = 11;
+    String FIELD_SERVICE_NAME = "buildConfigFieldService";
+    /**
+     * The binary asset of the fields of each module, written by the BuildConfigAssetWriter.
+     */
+    String ASSET_FOLDER = "buildconfig";
+    String ASSET_FILE_EXTENSION = ".bin";
+    int ASSET_MAGIC = 0x42434644;
+    int ASSET_VERSION = 1;
+    int ASSET_TAG_STRING = 0;
+    int ASSET_TAG_BOOLEAN = 1;
+    int ASSET_TAG_INT = 2;
+    int ASSET_TAG_LONG = 3;
+    int ASSET_TAG_OTHER = 4;
+    String PROPERTY_WORKERS = "buildConfigDelegate.workers";
+    String PROPERTY_CACHE_DIR = "buildConfigDelegate.cacheDir";
+    String PROPERTY_CACHE_SIZE = "buildConfigDelegate.cacheSize";
+    String PROPERTY_CONCAT_STRATEGY = "buildConfigDelegate.concatStrategy";
+    String PROPERTY_CALL_SITE_CACHE = "buildConfigDelegate.callSiteCache";
+    String PROPERTY_LOOP_SITE_CACHE = "buildConfigDelegate.loopSiteCache";
+    String PROPERTY_PASS_THROUGH = "buildConfigDelegate.passThrough";
+    String PROPERTY_LAZY_STATIC_FIELDS = "buildConfigDelegate.lazyStaticFields";
+    String PROPERTY_COMPACT_MARKERS = "buildConfigDelegate.compactMarkers";
+    String PROPERTY_LOOKUP_TRACING = "buildConfigDelegate.lookupTracing";
+    String PROPERTY_EMBED_FIELDS = "buildConfigDelegate.embedFields";
 }
@@ -13,6 +13,7 @@ import com.android.plugin.buildconfig.task.CollectBuildConfigFieldTask
 import com.android.plugin.buildconfig.transform.BuildConfigDelegateTransform
 import org.gradle.api.Plugin
 import org.gradle.api.Project
+import org.gradle.api.provider.Provider
 import java.io.File
 
 /**
@@ -31,6 +32,15 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
         //Configure the buildConfig folder
         //When we disable the buildconfig. We need to generate the BuildConfigDelegate class in our own source folder
         val assetsBuildConfigFolder = configureAssetsBuildConfigFolder(target)
+        //The field table is computed once per build and shared by all the tasks.
+        val fieldServiceProvider = target.gradle.sharedServices.registerIfAbsent(
+            BuildConfigConstants.FIELD_SERVICE_NAME,
+            BuildConfigFieldService::class.java
+        ) {}
+        //Number the compact markers after all the projects wrapped their fields.
+        target.gradle.projectsEvaluated {
+            fieldServiceProvider.get().assignCompactMarkers()
+        }
         //Create BuildConfigTask for each variant flavor.
         target.rootProject.allprojects { subProject ->
             subProject.afterEvaluate { project ->
@@ -39,8 +49,13 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
                     val appExtension = project.extensions.findByType(AppExtension::class.java)
                     appExtension?.applicationVariants?.forEach { applicationVariant ->
                         //Use application variant to configure the buildConfig file
-                        wrapBuildConfigList(project, applicationVariant)
-                        createCollectBuildConfigTask(project, applicationVariant, assetsBuildConfigFolder)
+                        wrapBuildConfigList(project, applicationVariant, fieldServiceProvider)
+                        createCollectBuildConfigTask(
+                            project,
+                            applicationVariant,
+                            assetsBuildConfigFolder,
+                            fieldServiceProvider
+                        )
                         val buildConfigDeleteOutput = File(
                             project.buildDir.absolutePath + "/"
                                     + AndroidProject.FD_GENERATED
@@ -56,7 +71,8 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
                             project,
                             BuildConfigConstants.DELEGATE_PACKAGE_NAME,
                             applicationVariant,
-                            buildConfigDeleteOutput
+                            buildConfigDeleteOutput,
+                            fieldServiceProvider
                         )
                     }
                 } else if (isAndroidLibraryProject(project)) {
@@ -64,13 +80,18 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
                     val libraryExtension = project.extensions.findByType(LibraryExtension::class.java)
                     libraryExtension?.libraryVariants?.all { libraryVariant ->
                         //Use library variant to configure the buildConfig file
-                        wrapBuildConfigList(project, libraryVariant)
-                        createCollectBuildConfigTask(project, libraryVariant, assetsBuildConfigFolder)
+                        wrapBuildConfigList(project, libraryVariant, fieldServiceProvider)
+                        createCollectBuildConfigTask(
+                            project,
+                            libraryVariant,
+                            assetsBuildConfigFolder,
+                            fieldServiceProvider
+                        )
                     }
                 }
             }
             val appExtension = subProject.extensions.findByType(AppExtension::class.java)
-            appExtension?.registerTransform(BuildConfigDelegateTransform(target))
+            appExtension?.registerTransform(BuildConfigDelegateTransform(target, fieldServiceProvider))
         }
     }
 
@@ -93,13 +114,14 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
 
     /**
      * Create a collect BuildConfig task for each buildFlavor
-     * The task will collect all the BuildConfig and convert it to Json.
+     * The task will collect all the BuildConfig and write them to the assets, unless they are embedded in the delegate.
      * Please refers to the [CollectBuildConfigFieldTask] for more information.
      */
     private fun createCollectBuildConfigTask(
         project: Project,
         variant: BaseVariant,
-        assetsBuildConfigFolder: File
+        assetsBuildConfigFolder: File,
+        fieldServiceProvider: Provider<BuildConfigFieldService>
     ) {
         val taskName = "collect" + variant.name.capitalize() + "BuildConfig"
         val addBuildConfigTaskProvider =
@@ -108,6 +130,9 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
                 task.description = "Delegate all the build config fields"
                 task.buildConfigFolderProvider.set(assetsBuildConfigFolder)
                 task.variantFlavorNameProvider.set(variant.flavorName)
+                task.embedFieldsProvider.set(isEmbedFields(project))
+                task.fieldServiceProvider.set(fieldServiceProvider)
+                task.usesService(fieldServiceProvider)
             }
         if (null != variant.generateBuildConfigProvider && variant.generateBuildConfigProvider.isPresent) {
             val generateBuildConfig = variant.generateBuildConfigProvider.get()
@@ -126,10 +151,19 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
      * For example: APPLICATION_ID="com.package.name" -> `BuildConfig#app#com.package.name`
      * Then, after we check the instruction: LDC and if the instruction matches the pattern we will know it is a BuildField.
      *
+     * With `buildConfigDelegate.compactMarkers=true`, the value is a compact marker instead: a field id assigned by the
+     * [BuildConfigFieldService] between two private use characters. It keeps the module name and the value out of the
+     * constant pools, and the transform resolves it with an array index. The ids are assigned once all the projects
+     * are evaluated, see [BuildConfigFieldService.assignCompactMarkers].
+     *
      * Tips:
      * Some build fields are shared in variants, so we have to check them before modifying them.
      */
-    private fun wrapBuildConfigList(project: Project, variant: BaseVariant) {
+    private fun wrapBuildConfigList(
+        project: Project,
+        variant: BaseVariant,
+        fieldServiceProvider: Provider<BuildConfigFieldService>
+    ) {
         if (null != variant.generateBuildConfigProvider && variant.generateBuildConfigProvider.isPresent) {
             val generateBuildConfig = variant.generateBuildConfigProvider.get()
             if (generateBuildConfig.items.isPresent) {
@@ -141,14 +175,22 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
                 }
                 val buildConfigMaskRegex =
                     ("\"" + BuildConfigConstants.BUILD_CONFIG_VALUE_PATTERN_STRING + "\"").toRegex()
+                val compactMarkerPrefix = "\"" + BuildConfigConstants.COMPACT_MARKER_SOURCE_DELIMITER
+                val compactMarkers = project.findProperty(BuildConfigConstants.PROPERTY_COMPACT_MARKERS)
+                    ?.toString()?.toBoolean() ?: false
                 buildConfigItems.forEach { item ->
                     if (item is ClassField && BuildConfigConstants.TYPE_STRING == item.type) {
                         //wrap the build config value: https://help.com -> `BuildConfig#app#https://help.com`
-                        if (!buildConfigMaskRegex.matches(item.value)) {
-                            valueField.set(
-                                item,
-                                "\"`" + "${BuildConfigConstants.BUILD_CONFIG}#${project.name}#" + item.value.trim('\"') + "`" + '\"'
-                            )
+                        if (!buildConfigMaskRegex.matches(item.value) && !item.value.startsWith(compactMarkerPrefix)) {
+                            val marker =
+                                "`" + "${BuildConfigConstants.BUILD_CONFIG}#${project.name}#" + item.value.trim('\"') + "`"
+                            if (compactMarkers) {
+                                fieldServiceProvider.get().registerCompactMarker(project.name, item.name, marker) {
+                                    valueField.set(item, "\"" + it + "\"")
+                                }
+                            } else {
+                                valueField.set(item, "\"" + marker + "\"")
+                            }
                         }
                     }
                 }
@@ -162,18 +204,22 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
      * @param applicationId The package of the BuildConfigDelegate but here we use a fixed package name: `com.android` instead of the dynamic package name.
      * @param variant might be [ApplicationVariant] or [LibraryVariant]
      * @param buildConfigDeleteOutput The output folder
+     * @param fieldServiceProvider The fields of all the modules, they are embedded in the delegate if
+     * `buildConfigDelegate.embedFields=true`.
      */
     private fun createGenerateBuildConfigDelegateTask(
         project: Project,
         applicationId: String,
         variant: BaseVariant,
-        buildConfigDeleteOutput: File
+        buildConfigDeleteOutput: File,
+        fieldServiceProvider: Provider<BuildConfigFieldService>
     ) {
         val taskName =
             "generate" + variant.name.capitalize() + BuildConfigConstants.DELEGATE_CLASS_NAME
         val generateBuildConfigDelegateTask = project.tasks.create(taskName) { task ->
             task.group = "buildconfig"
             task.description = "Generate the build config delegate."
+            task.usesService(fieldServiceProvider)
         }
         //When the buildFeature.buildConfig = false. The generateBuildConfigProvider is null.
         //That's why we use our own compile folder.
@@ -183,18 +229,39 @@ class BuildConfigDelegatePlugin : Plugin<Project> {
                 val compileTask = variantScope.taskContainer.compileTask.get()
                 compileTask.dependsOn(generateBuildConfigDelegateTask)
             }
+            //The pass-through variants, e.g., release, only need a stub.
+            val passThrough = PassThroughVariants.isPassThrough(project, variant)
+            val lookupTracing = project.findProperty(BuildConfigConstants.PROPERTY_LOOKUP_TRACING)
+                ?.toString()?.toBoolean() ?: false
+            val embedFields = isEmbedFields(project)
             generateBuildConfigDelegateTask.doLast {
+                //The stub of a pass-through variant never looks up a field.
+                val embeddedFields = if (embedFields && !passThrough) {
+                    fieldServiceProvider.get().getAllModuleFields(project.rootProject)
+                } else {
+                    null
+                }
                 val buildConfigGlobalGenerator = BuildConfigDelegateGenerator()
                 buildConfigGlobalGenerator.generateBuildConfig(
                     applicationId,
                     variant.name,
                     BuildConfigConstants.DELEGATE_CLASS_NAME,
-                    buildConfigDeleteOutput
+                    buildConfigDeleteOutput,
+                    passThrough,
+                    lookupTracing,
+                    embeddedFields
                 )
             }
         }
     }
 
+    /**
+     * Embed the fields in the generated BuildConfigDelegate instead of the assets.
+     */
+    private fun isEmbedFields(project: Project): Boolean {
+        return project.findProperty(BuildConfigConstants.PROPERTY_EMBED_FIELDS)?.toString()?.toBoolean() ?: false
+    }
+
     /**
      * Determine whether the project is an app.
      */
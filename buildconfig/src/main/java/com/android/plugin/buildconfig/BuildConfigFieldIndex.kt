@@ -0,0 +1,87 @@
+package com.android.plugin.buildconfig
+
+import java.security.MessageDigest
+import java.util.Collections
+
+/**
+ * An immutable, deduplicated index of the BuildConfig fields of one variant across all the modules.
+ * The index is shared by all the transform threads, so it must never change after construction.
+ */
+class BuildConfigFieldIndex(classFields: Collection<BuildConfigClassField>) {
+    /**
+     * All the fields in the order they were collected, without duplicates.
+     */
+    val fields: List<BuildConfigClassField> = Collections.unmodifiableList(LinkedHashSet(classFields).toList())
+
+    /**
+     * The marker text of a String field, e.g., `BuildConfig#app#https://help.com`, to the field.
+     * If different fields share the same marker, the first one wins, just like the linear search used to do.
+     */
+    private val markerIndex: Map<String, BuildConfigClassField>
+
+    /**
+     * The id of a compact marker to the field, the compact markers are resolved by an array index.
+     */
+    private val idIndex: Array<BuildConfigClassField?>
+
+    /**
+     * A stable digest of the fields. The order of the fields does not matter.
+     */
+    val fingerprint: String
+
+    init {
+        val markerIndex = HashMap<String, BuildConfigClassField>()
+        fields.forEach { classField ->
+            if (classField.value.isNotBlank()) {
+                markerIndex.putIfAbsent(classField.value, classField)
+            }
+        }
+        this.markerIndex = Collections.unmodifiableMap(markerIndex)
+        val idIndex = arrayOfNulls<BuildConfigClassField>((fields.maxOfOrNull { it.id } ?: 0) + 1)
+        fields.forEach { classField ->
+            if (BuildConfigClassField.NO_ID < classField.id && null == idIndex[classField.id]) {
+                idIndex[classField.id] = classField
+            }
+        }
+        this.idIndex = idIndex
+        this.fingerprint = fingerprint(fields)
+    }
+
+    /**
+     * @param marker The full marker or the compact marker.
+     */
+    fun findByMarker(marker: String): BuildConfigClassField? {
+        if (marker.isNotEmpty() && BuildConfigConstants.COMPACT_MARKER_DELIMITER == marker[0]) {
+            val id = marker.substring(1, marker.length - 1).toIntOrNull() ?: return null
+            return findById(id)
+        }
+        return markerIndex[marker]
+    }
+
+    /**
+     * If any field has the id of a compact marker. Without one, no class can contain a compact marker.
+     */
+    val hasCompactIds: Boolean
+        get() = idIndex.size > 1
+
+    fun findById(id: Int): BuildConfigClassField? {
+        return if (id in 1 until idIndex.size) idIndex[id] else null
+    }
+
+    private fun fingerprint(classFieldList: List<BuildConfigClassField>): String {
+        val messageDigest = MessageDigest.getInstance("SHA-256")
+        classFieldList.map { classField ->
+            classField.module + "#" + classField.name + "#" + classField.type + "#" + classField.value + "#" +
+                    classField.id
+        }.sorted().forEach { line ->
+            messageDigest.update(line.toByteArray(Charsets.UTF_8))
+            messageDigest.update('\n'.toByte())
+        }
+        return messageDigest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    companion object {
+        @JvmField
+        val EMPTY = BuildConfigFieldIndex(emptyList())
+    }
+}
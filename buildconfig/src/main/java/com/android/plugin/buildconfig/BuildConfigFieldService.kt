@@ -0,0 +1,181 @@
+package com.android.plugin.buildconfig
+
+import com.android.build.gradle.AppExtension
+import com.android.build.gradle.AppPlugin
+import com.android.build.gradle.LibraryExtension
+import com.android.build.gradle.LibraryPlugin
+import com.android.build.gradle.api.BaseVariant
+import com.android.builder.model.ClassField
+import org.gradle.api.Project
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+
+/**
+ * A shared build service that holds the BuildConfig fields of all the modules.
+ *
+ * Walking all the projects and variants is expensive, so the field table is computed once per build, the first time
+ * a task asks for it. After that, all the variants' transforms and the collect tasks read the same immutable table.
+ *
+ * The service also assigns the ids of the compact markers once all the projects wrapped their BuildConfig fields,
+ * and maps the ids back to the full markers when the fields are collected.
+ * So the assets and the delegate still see the full markers.
+ *
+ * @see BuildConfigFieldIndex
+ */
+abstract class BuildConfigFieldService : BuildService<BuildServiceParameters.None> {
+    /**
+     * Module name -> variant name -> fields.
+     */
+    private var moduleFields: Map<String, Map<String, List<BuildConfigClassField>>>? = null
+
+    /**
+     * Variant name -> the fields of all the modules.
+     */
+    private var variantIndexes: Map<String, BuildConfigFieldIndex>? = null
+
+    /**
+     * The full marker to the id of its compact marker, and the full markers ordered by their ids.
+     */
+    private val markerIds = HashMap<String, Int>()
+    private val markers = ArrayList<String>()
+
+    /**
+     * The markers registered while the projects are configured, they get their ids in [assignCompactMarkers].
+     */
+    private val pendingMarkers = ArrayList<PendingMarker>()
+
+    /**
+     * Register the full marker of a field. Its compact marker is passed to [onAssigned] by [assignCompactMarkers].
+     */
+    @Synchronized
+    fun registerCompactMarker(module: String, name: String, marker: String, onAssigned: (String) -> Unit) {
+        pendingMarkers.add(PendingMarker(module, name, marker, onAssigned))
+    }
+
+    /**
+     * Number the registered markers sorted by the module and the field name.
+     * So the ids do not depend on the order the projects and the variants were configured in,
+     * and the same fields always produce the same rewritten classes.
+     */
+    @Synchronized
+    fun assignCompactMarkers() {
+        pendingMarkers.sortedWith(compareBy<PendingMarker>({ it.module }, { it.name }, { it.marker }))
+            .forEach { pendingMarker -> pendingMarker.onAssigned(compactMarker(pendingMarker.marker)) }
+        pendingMarkers.clear()
+    }
+
+    /**
+     * The compact marker of the full marker, as it is written to the BuildConfig source file.
+     * The same full marker always gets the same id, so a field shared by the variants is only registered once.
+     * e.g., `BuildConfig#app#https://help.com` -> \uE0001\uE000
+     */
+    @Synchronized
+    fun compactMarker(marker: String): String {
+        val id = markerIds.getOrPut(marker) {
+            markers.add(marker)
+            markers.size
+        }
+        return BuildConfigConstants.COMPACT_MARKER_SOURCE_DELIMITER + id +
+                BuildConfigConstants.COMPACT_MARKER_SOURCE_DELIMITER
+    }
+
+    /**
+     * Map the compact marker in the BuildConfig source form back to its id and the full marker.
+     */
+    @Synchronized
+    private fun findCompactMarker(value: String): Pair<Int, String>? {
+        val delimiter = BuildConfigConstants.COMPACT_MARKER_SOURCE_DELIMITER
+        if (!value.startsWith(delimiter) || !value.endsWith(delimiter) || value.length <= delimiter.length * 2) {
+            return null
+        }
+        val id = value.substring(delimiter.length, value.length - delimiter.length).toIntOrNull() ?: return null
+        return if (id in 1..markers.size) id to markers[id - 1] else null
+    }
+
+    /**
+     * The index of all the modules' fields for the variant.
+     */
+    fun getFieldIndex(rootProject: Project, variantName: String): BuildConfigFieldIndex {
+        collectIfNecessary(rootProject)
+        return variantIndexes?.get(variantName) ?: BuildConfigFieldIndex.EMPTY
+    }
+
+    /**
+     * All the fields of all the modules: module name -> variant name -> fields.
+     */
+    fun getAllModuleFields(rootProject: Project): Map<String, Map<String, List<BuildConfigClassField>>> {
+        collectIfNecessary(rootProject)
+        return moduleFields ?: emptyMap()
+    }
+
+    /**
+     * All the fields of the module, grouped by the variant name.
+     */
+    fun getModuleFields(rootProject: Project, module: String): Map<String, List<BuildConfigClassField>> {
+        collectIfNecessary(rootProject)
+        return moduleFields?.get(module) ?: emptyMap()
+    }
+
+    @Synchronized
+    private fun collectIfNecessary(rootProject: Project) {
+        if (null != moduleFields) return
+        val moduleFields = linkedMapOf<String, Map<String, List<BuildConfigClassField>>>()
+        rootProject.allprojects { subProject ->
+            val variantFields = linkedMapOf<String, List<BuildConfigClassField>>()
+            if (subProject.plugins.hasPlugin(AppPlugin::class.java)) {
+                val appExtension = subProject.extensions.findByType(AppExtension::class.java)
+                appExtension?.applicationVariants?.forEach { applicationVariant ->
+                    collectVariantFields(subProject, applicationVariant, variantFields)
+                }
+            } else if (subProject.plugins.hasPlugin(LibraryPlugin::class.java)) {
+                val libraryExtension = subProject.extensions.findByType(LibraryExtension::class.java)
+                libraryExtension?.libraryVariants?.all { libraryVariant ->
+                    collectVariantFields(subProject, libraryVariant, variantFields)
+                }
+            }
+            if (variantFields.isNotEmpty()) {
+                moduleFields[subProject.name] = variantFields
+            }
+        }
+        val variantFields = linkedMapOf<String, MutableList<BuildConfigClassField>>()
+        moduleFields.values.forEach { fields ->
+            fields.forEach { (variantName, classFieldList) ->
+                variantFields.getOrPut(variantName) { mutableListOf() }.addAll(classFieldList)
+            }
+        }
+        this.variantIndexes = variantFields.mapValues { (_, classFieldList) -> BuildConfigFieldIndex(classFieldList) }
+        this.moduleFields = moduleFields
+    }
+
+    private fun collectVariantFields(
+        project: Project,
+        variant: BaseVariant,
+        variantFields: MutableMap<String, List<BuildConfigClassField>>
+    ) {
+        val generateBuildConfigProvider = variant.generateBuildConfigProvider
+        if (null != generateBuildConfigProvider && generateBuildConfigProvider.isPresent) {
+            val generateBuildConfig = generateBuildConfigProvider.get()
+            if (generateBuildConfig.items.isPresent) {
+                variantFields[variant.name] =
+                    generateBuildConfig.items.get().filterIsInstance<ClassField>().map { classField ->
+                        val value = classField.value.trim('\"')
+                        val compactMarker = findCompactMarker(value)
+                        BuildConfigClassField(
+                            project.name,
+                            classField.name,
+                            classField.type,
+                            compactMarker?.second ?: value,
+                            compactMarker?.first ?: BuildConfigClassField.NO_ID
+                        )
+                    }.distinct()
+            }
+        }
+    }
+
+    private class PendingMarker(
+        val module: String,
+        val name: String,
+        val marker: String,
+        val onAssigned: (String) -> Unit
+    )
+}
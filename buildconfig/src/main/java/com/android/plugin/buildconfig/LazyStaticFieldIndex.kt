@@ -0,0 +1,46 @@
+package com.android.plugin.buildconfig
+
+import java.security.MessageDigest
+import java.util.Collections
+
+/**
+ * An immutable index of the lazy static fields of all the classes of a variant.
+ * A lazy field is no longer initialized by its class, so the reads in the other classes have to call its accessor
+ * as well. The index is shared by all the transform threads, so it must never change after construction.
+ *
+ * @param fields The fields as `<internal name of the owner>.<field name>`, e.g., com/test/Config.SERVER_URL
+ */
+class LazyStaticFieldIndex(fields: Collection<String>) {
+    val fields: Set<String> = Collections.unmodifiableSet(fields.toSortedSet())
+
+    /**
+     * The internal names of the classes that have a lazy field.
+     */
+    val owners: Set<String> = Collections.unmodifiableSet(fields.map { it.substringBeforeLast('.') }.toSortedSet())
+
+    /**
+     * A stable digest of the fields, the other classes are rewritten differently if it changes.
+     */
+    val fingerprint: String
+
+    init {
+        val messageDigest = MessageDigest.getInstance("SHA-256")
+        this.fields.forEach { field ->
+            messageDigest.update(field.toByteArray(Charsets.UTF_8))
+            messageDigest.update('\n'.toByte())
+        }
+        fingerprint = messageDigest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    fun isEmpty(): Boolean = fields.isEmpty()
+
+    fun contains(owner: String, name: String): Boolean = fields.contains(key(owner, name))
+
+    companion object {
+        @JvmField
+        val EMPTY = LazyStaticFieldIndex(emptyList())
+
+        @JvmStatic
+        fun key(owner: String, name: String): String = "$owner.$name"
+    }
+}
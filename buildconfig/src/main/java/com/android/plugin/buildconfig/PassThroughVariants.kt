@@ -0,0 +1,40 @@
+package com.android.plugin.buildconfig
+
+import com.android.build.gradle.AppExtension
+import com.android.build.gradle.api.BaseVariant
+import org.gradle.api.Project
+
+/**
+ * The variants that never switch flavors, e.g., the release build type, so they do not need the delegate at all.
+ * They are configured by the `buildConfigDelegate.passThrough` property, a comma separated list of the build types
+ * or the variant names:
+ * ```
+ * buildConfigDelegate.passThrough=release,stagingDebug
+ * ```
+ * For these variants the transform unwraps the markers back to the plain literals and the BuildConfigDelegate is
+ * generated as a stub.
+ */
+object PassThroughVariants {
+    fun isPassThrough(project: Project, variant: BaseVariant): Boolean {
+        val names = getPassThroughNames(project)
+        return variant.name in names || variant.buildType.name in names
+    }
+
+    /**
+     * The transform only knows the variant name, so we look up the build type from the app extension.
+     */
+    fun isPassThrough(project: Project, variantName: String): Boolean {
+        val names = getPassThroughNames(project)
+        if (names.isEmpty()) return false
+        if (variantName in names) return true
+        val appExtension = project.extensions.findByType(AppExtension::class.java) ?: return false
+        return appExtension.applicationVariants.any { variant ->
+            variant.name == variantName && variant.buildType.name in names
+        }
+    }
+
+    private fun getPassThroughNames(project: Project): Set<String> {
+        val property = project.findProperty(BuildConfigConstants.PROPERTY_PASS_THROUGH)?.toString() ?: return emptySet()
+        return property.split(',').map { it.trim() }.filter { it.isNotEmpty() }.toSet()
+    }
+}
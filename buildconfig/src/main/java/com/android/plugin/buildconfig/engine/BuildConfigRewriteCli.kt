@@ -0,0 +1,120 @@
+package com.android.plugin.buildconfig.engine
+
+import com.android.plugin.buildconfig.BuildConfigClassField
+import com.android.plugin.buildconfig.BuildConfigFieldIndex
+import com.android.plugin.buildconfig.LazyStaticFieldIndex
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
+import com.google.gson.Gson
+import java.io.File
+import kotlin.system.exitProcess
+
+/**
+ * The command line entry of the [RewriteEngine]. It rewrites directories and jars without an Android build,
+ * which makes it easy to profile or benchmark the engine.
+ *
+ * ```
+ * java -cp <plugin classpath> com.android.plugin.buildconfig.engine.BuildConfigRewriteCli \
+ *     --fields fields.json --output out [--workers 8] [--cache-dir cache] [--cache-size 256] [--concat AUTO] \
+ *     [--no-call-site-cache] [--no-loop-site-cache] [--pass-through] [--lazy-static-fields] \
+ *     [--report report.json] \
+ *     app/classes library.jar ...
+ * ```
+ * The fields file is a json array of the BuildConfig fields, the value is the marker text of the field:
+ * ```
+ * [{"module":"app","name":"SERVER_URL","type":"String","value":"`BuildConfig#app#https://android.com`"}]
+ * ```
+ * A field wrapped with a compact marker also has the id of the marker, e.g., `"id":12`.
+ * Each input is written to `<output>/<input file name>`.
+ */
+object BuildConfigRewriteCli {
+    private const val USAGE = "Usage: BuildConfigRewriteCli --fields <fields.json> --output <dir> " +
+            "[--workers <count>] [--cache-dir <dir>] [--cache-size <megabytes>] [--concat <strategy>] " +
+            "[--no-call-site-cache] [--no-loop-site-cache] [--pass-through] [--lazy-static-fields] " +
+            "[--report <report.json>] <input>..."
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        var fieldsFile: File? = null
+        var outputDir: File? = null
+        var reportFile: File? = null
+        var options = RewriteOptions()
+        val inputs = mutableListOf<File>()
+        var index = 0
+        while (index < args.size) {
+            val arg = args[index++]
+            if (arg == "--no-call-site-cache") {
+                options = options.copy(callSiteCache = false)
+                continue
+            }
+            if (arg == "--no-loop-site-cache") {
+                options = options.copy(loopSiteCache = false)
+                continue
+            }
+            if (arg == "--pass-through") {
+                options = options.copy(passThrough = true)
+                continue
+            }
+            if (arg == "--lazy-static-fields") {
+                options = options.copy(lazyStaticFields = true)
+                continue
+            }
+            if (arg.startsWith("--") && index >= args.size) {
+                exitWithUsage("Missing the value of $arg")
+            }
+            when (arg) {
+                "--fields" -> fieldsFile = File(args[index++])
+                "--output" -> outputDir = File(args[index++])
+                "--report" -> reportFile = File(args[index++])
+                "--workers" -> options = options.copy(workerCount = args[index++].toInt())
+                "--cache-dir" -> options = options.copy(cacheDir = File(args[index++]))
+                "--cache-size" -> options = options.copy(cacheSize = args[index++].toLong() * 1024 * 1024)
+                "--concat" -> options = options.copy(concatStrategy = ConcatStrategy.valueOf(args[index++].uppercase()))
+                else -> inputs += File(arg)
+            }
+        }
+        if (null == fieldsFile || null == outputDir || inputs.isEmpty()) {
+            exitWithUsage(null)
+        }
+        val classFields = fieldsFile.reader().use { reader ->
+            Gson().fromJson(reader, Array<BuildConfigClassField>::class.java)
+        }
+        val requests = createRequests(inputs, outputDir)
+        val report = RewriteReport("cli", false, options.workerCount)
+        val startTime = System.nanoTime()
+        val fieldIndex = BuildConfigFieldIndex(classFields.toList())
+        val lazyFieldIndex = if (options.lazyStaticFields && !options.passThrough) {
+            LazyStaticFieldScanner(fieldIndex).scan(inputs)
+        } else LazyStaticFieldIndex.EMPTY
+        RewriteEngine(fieldIndex, options, lazyFieldIndex).rewrite(requests, report)
+        println("Rewrote ${requests.size} inputs in ${(System.nanoTime() - startTime) / 1_000_000}ms.")
+        if (null != reportFile) {
+            report.write(reportFile)
+            println("Report: ${reportFile.absolutePath}")
+        }
+    }
+
+    private fun createRequests(inputs: List<File>, outputDir: File): List<RewriteRequest> {
+        val outputNames = mutableSetOf<String>()
+        return inputs.mapIndexed { index, input ->
+            if (!input.exists()) {
+                exitWithUsage("Input ${input.absolutePath} does not exist.")
+            }
+            //Keep the output names unique when different inputs share the same file name.
+            val outputName = if (outputNames.add(input.name)) input.name else "$index-${input.name}"
+            val output = File(outputDir, outputName)
+            if (input.isDirectory) {
+                RewriteRequest.Directory(input.path, input, output)
+            } else {
+                RewriteRequest.Jar(input.path, input, output)
+            }
+        }
+    }
+
+    private fun exitWithUsage(message: String?): Nothing {
+        if (null != message) {
+            System.err.println(message)
+        }
+        System.err.println(USAGE)
+        exitProcess(1)
+    }
+}
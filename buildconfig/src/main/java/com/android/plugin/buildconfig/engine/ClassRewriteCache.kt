@@ -0,0 +1,118 @@
+package com.android.plugin.buildconfig.engine
+
+import com.android.plugin.buildconfig.BuildConfigConstants
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A persistent content-addressed cache for the rewritten classes.
+ *
+ * The key of an entry is the hash of the original class bytes plus the fingerprint of the BuildConfig field table
+ * and the rewrite options, and the rewrite semantics in [BuildConfigConstants]. So a clean build, a branch switch or a new CI agent that points
+ * to the same cache folder gets the rewritten bytes back without running ASM again.
+ *
+ * The entries are stored as `<cacheDir>/<first two hex chars>/<hash>`. A hit touches the file, and [trim] deletes the
+ * least recently used entries until the cache fits into [maxSize] bytes.
+ *
+ * The cache is safe to use from multiple threads, all the entries are published by an atomic rename.
+ */
+class ClassRewriteCache(
+    private val cacheDir: File,
+    private val maxSize: Long,
+    inputFingerprint: String
+) {
+    private val keySalt = (rewriteFingerprint() + "#" + inputFingerprint).toByteArray(Charsets.UTF_8)
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val storedBytes = AtomicLong()
+
+    /**
+     * Return the cached rewritten bytes of the class, or rewrite the class with [rewriter] and store the result.
+     */
+    fun getOrRewrite(bytes: ByteArray, rewriter: (ByteArray) -> ByteArray): ByteArray {
+        val key = key(bytes)
+        val cacheFile = File(cacheDir, key.substring(0, 2) + File.separator + key)
+        if (cacheFile.isFile) {
+            try {
+                val cachedBytes = cacheFile.readBytes()
+                cacheFile.setLastModified(System.currentTimeMillis())
+                hitCount.incrementAndGet()
+                return cachedBytes
+            } catch (e: IOException) {
+                //The entry might be evicted by another build, treat it as a miss.
+            }
+        }
+        missCount.incrementAndGet()
+        val newBytes = rewriter(bytes)
+        store(cacheFile, newBytes)
+        return newBytes
+    }
+
+    fun getHitCount(): Long = hitCount.get()
+
+    fun getMissCount(): Long = missCount.get()
+
+    /**
+     * Evict the least recently used entries until the total size is not larger than [maxSize].
+     *
+     * Walking the whole cache folder costs a stat per entry, so it only happens after this run stored new entries.
+     * A run of hits only touches the entries, the cache cannot grow past the size the last trim left it at.
+     */
+    fun trim() {
+        if (0L == storedBytes.get() || !cacheDir.isDirectory) return
+        val cacheFiles = cacheDir.walk().filter { it.isFile }.toMutableList()
+        var totalSize = cacheFiles.sumOf { it.length() }
+        if (totalSize <= maxSize) return
+        cacheFiles.sortBy { it.lastModified() }
+        for (cacheFile in cacheFiles) {
+            if (totalSize <= maxSize) break
+            val length = cacheFile.length()
+            if (cacheFile.delete()) {
+                totalSize -= length
+            }
+        }
+    }
+
+    private fun store(cacheFile: File, bytes: ByteArray) {
+        try {
+            val parentFile = cacheFile.parentFile
+            parentFile.mkdirs()
+            val tempFile = File.createTempFile(cacheFile.name, ".tmp", parentFile)
+            tempFile.writeBytes(bytes)
+            Files.move(
+                tempFile.toPath(), cacheFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+            )
+            storedBytes.addAndGet(bytes.size.toLong())
+        } catch (e: IOException) {
+            //The cache is only an optimization, a failed write should never fail the build.
+        }
+    }
+
+    private fun key(bytes: ByteArray): String {
+        val messageDigest = MessageDigest.getInstance("SHA-256")
+        messageDigest.update(keySalt)
+        messageDigest.update(bytes)
+        return messageDigest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    companion object {
+        /**
+         * Everything in [BuildConfigConstants] that changes the rewritten bytecode.
+         * Bump the [BuildConfigConstants.REWRITE_VERSION] when the visitors change the output.
+         */
+        private fun rewriteFingerprint(): String {
+            return listOf(
+                BuildConfigConstants.REWRITE_VERSION.toString(),
+                BuildConfigConstants.BUILD_CONFIG_VALUE_PATTERN_STRING,
+                BuildConfigConstants.DELEGATE_CLASS_DESC,
+                BuildConfigConstants.DELEGATE_METHOD_NAME,
+                BuildConfigConstants.DELEGATE_METHOD_DESCRIPTOR
+            ).joinToString("#")
+        }
+    }
+}
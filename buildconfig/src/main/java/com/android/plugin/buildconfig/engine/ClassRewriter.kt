@@ -0,0 +1,106 @@
+package com.android.plugin.buildconfig.engine
+
+import com.android.plugin.buildconfig.BuildConfigConstants
+import com.android.plugin.buildconfig.BuildConfigFieldIndex
+import com.android.plugin.buildconfig.LazyStaticFieldIndex
+import com.android.plugin.buildconfig.visitor.ConstantPoolScanner
+import com.android.plugin.buildconfig.visitor.MarkerUnwrapClassVisitor
+import com.android.plugin.buildconfig.visitor.StringReplaceClassInvitor
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+/**
+ * Rewrite a single class. This class is shared by all the rewrite tasks, so it should stay stateless.
+ *
+ * @param fieldIndex All the BuildConfig fields of the variant.
+ * @param options The options that change the rewritten classes.
+ * @param lazyFieldIndex The lazy static fields of all the classes, only used with the lazy static fields.
+ * @param cache The optional persistent cache for the rewritten classes.
+ */
+class ClassRewriter(
+    private val fieldIndex: BuildConfigFieldIndex,
+    private val options: RewriteOptions,
+    private val lazyFieldIndex: LazyStaticFieldIndex,
+    private val cache: ClassRewriteCache?
+) {
+    /**
+     * A class that reads a lazy field of another class refers to the owner of the field, so the internal names of the
+     * owners are searched for as well. The compact marker delimiter is only searched for if the fields have ids,
+     * otherwise a class with a U+E000 character of its own would take the slow path for nothing.
+     */
+    private val needles = (listOf(MARKER_PREFIX_BYTES) +
+            (if (fieldIndex.hasCompactIds) listOf(COMPACT_MARKER_BYTES) else emptyList()) +
+            lazyFieldIndex.owners.map { owner -> owner.toByteArray(Charsets.UTF_8) }).toTypedArray()
+
+    /**
+     * Rewrite the class bytes.
+     * @param className The name of the class file, only used by the report.
+     * @return the original array if the class does not reference any BuildConfig field.
+     */
+    fun rewrite(byteArray: ByteArray, className: String, inputReport: RewriteReport.InputReport): ByteArray {
+        //Most of the classes never reference a BuildConfig field, return the original bytes for them.
+        if (!ConstantPoolScanner.containsUtf8(byteArray, *needles)) {
+            inputReport.onClassSkipped()
+            return byteArray
+        }
+        val startTime = System.nanoTime()
+        //The cached entry keeps the number of the replaced LDC sites and the optimized loop sites in front of
+        //the class bytes.
+        val entry = cache?.getOrRewrite(byteArray, ::visitClass) ?: visitClass(byteArray)
+        val result = DataInputStream(ByteArrayInputStream(entry))
+        val ldcSites = result.readInt()
+        val loopSites = List(result.readInt()) { result.readUTF() }
+        inputReport.onClassRewritten(className, ldcSites, loopSites, System.nanoTime() - startTime)
+        if (0 == ldcSites) {
+            return byteArray
+        }
+        return result.readBytes()
+    }
+
+    private fun visitClass(byteArray: ByteArray): ByteArray {
+        val classReader = ClassReader(byteArray)
+        val classWriter = ClassWriter(classReader, ClassWriter.COMPUTE_MAXS)
+        var loopSites = emptyList<String>()
+        val replacedCount = if (options.passThrough) {
+            //The pass-through variants only change the constants, the frames stay valid.
+            val classVisitor = MarkerUnwrapClassVisitor(fieldIndex, classWriter)
+            classReader.accept(classVisitor, 0)
+            classVisitor.replacedCount
+        } else {
+            val classVisitor = StringReplaceClassInvitor(
+                fieldIndex,
+                options.concatStrategy,
+                options.callSiteCache,
+                options.loopSiteCache,
+                options.lazyStaticFields,
+                lazyFieldIndex,
+                classReader,
+                classWriter
+            )
+            //The untouched methods are copied as is. The rewritten instructions never need a new frame and the labels
+            //keep the existing frames in place, so there is no need to expand them.
+            classReader.accept(classVisitor, 0)
+            loopSites = classVisitor.optimizedLoopSites
+            classVisitor.replacedCount
+        }
+        val classBytes = classWriter.toByteArray()
+        val outputStream = ByteArrayOutputStream(classBytes.size + 64)
+        DataOutputStream(outputStream).use { output ->
+            output.writeInt(replacedCount)
+            output.writeInt(loopSites.size)
+            loopSites.forEach { output.writeUTF(it) }
+            output.write(classBytes)
+        }
+        return outputStream.toByteArray()
+    }
+
+    companion object {
+        private val MARKER_PREFIX_BYTES = BuildConfigConstants.BUILD_CONFIG_MARKER_PREFIX.toByteArray(Charsets.UTF_8)
+        private val COMPACT_MARKER_BYTES =
+            BuildConfigConstants.COMPACT_MARKER_DELIMITER.toString().toByteArray(Charsets.UTF_8)
+    }
+}
@@ -0,0 +1,137 @@
+package com.android.plugin.buildconfig.engine
+
+import com.android.plugin.buildconfig.BuildConfigConstants
+import com.android.plugin.buildconfig.BuildConfigFieldIndex
+import com.android.plugin.buildconfig.LazyStaticFieldIndex
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
+import com.android.plugin.buildconfig.visitor.StringConcatEmitter
+import org.apache.commons.compress.archivers.zip.ZipFile
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.FieldVisitor
+import org.objectweb.asm.Opcodes
+import java.io.File
+
+/**
+ * Find the lazy static fields of all the inputs before any class is rewritten.
+ * A class may read the field of a class from another input, so the reads can only be redirected once all the lazy
+ * fields are known. The scan reads the classes the same way the [RewriteEngine] does, but skips their code.
+ *
+ * A subclass inherits the static fields, e.g., `Sub.SERVER_URL` resolves to `Base.SERVER_URL`, so the index has
+ * a key for each class that reaches the lazy field through its superclasses, unless the class hides the field
+ * with a field of the same name. The static accessor of the base class resolves through the subclass the same way.
+ *
+ * The cost: every run with the lazy static fields rescans every class of every input, the incremental runs included,
+ * since an unchanged class may read a field that just became lazy. The benefit: only the String constants become
+ * lazy, and javac already inlines their reads in the other classes, so the only gain is the smaller `<clinit>` work.
+ */
+class LazyStaticFieldScanner(private val fieldIndex: BuildConfigFieldIndex) {
+
+    fun scan(inputs: List<File>): LazyStaticFieldIndex {
+        val classes = hashMapOf<String, ScannedClass>()
+        inputs.forEach { input ->
+            if (input.isDirectory) {
+                input.walk().filter { file ->
+                    file.isFile && RewriteEngine.isTransformableClassFile(file.name, false)
+                }.forEach { file -> scanClass(file.readBytes(), classes) }
+            } else if (input.isFile) {
+                ZipFile(input).use { zipFile ->
+                    zipFile.entriesInPhysicalOrder.asSequence().filter { entry ->
+                        !entry.isDirectory && RewriteEngine.isTransformableJarEntry(entry.name, false)
+                    }.forEach { entry ->
+                        scanClass(zipFile.getInputStream(entry).use { it.readBytes() }, classes)
+                    }
+                }
+            }
+        }
+        val inheritedFields = hashMapOf<String, Set<String>>()
+        val fieldKeys = mutableListOf<String>()
+        classes.keys.forEach { className ->
+            findLazyFields(className, classes, inheritedFields).forEach { name ->
+                fieldKeys += LazyStaticFieldIndex.key(className, name)
+            }
+        }
+        return LazyStaticFieldIndex(fieldKeys)
+    }
+
+    private fun scanClass(bytes: ByteArray, classes: MutableMap<String, ScannedClass>) {
+        val scannedClass = try {
+            ScannedClass().also { classVisitor ->
+                ClassReader(bytes).accept(
+                    classVisitor,
+                    ClassReader.SKIP_CODE or ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES
+                )
+            }
+        } catch (e: RuntimeException) {
+            //The rewrite reports the malformed class.
+            return
+        }
+        //The first class wins, like on the class path.
+        classes.putIfAbsent(scannedClass.name, scannedClass)
+    }
+
+    /**
+     * The lazy fields the class declares or inherits from its superclasses, by name.
+     */
+    private fun findLazyFields(
+        className: String,
+        classes: Map<String, ScannedClass>,
+        inheritedFields: MutableMap<String, Set<String>>
+    ): Set<String> {
+        inheritedFields[className]?.let { return it }
+        val scannedClass = classes[className] ?: return emptySet()
+        //Mark the class first, so a broken hierarchy with a cycle ends here.
+        inheritedFields[className] = emptySet()
+        val superFields = scannedClass.superName?.let { findLazyFields(it, classes, inheritedFields) } ?: emptySet()
+        val lazyFields = superFields.filterTo(linkedSetOf()) { name -> name !in scannedClass.stringFields }
+        lazyFields += scannedClass.lazyFields
+        inheritedFields[className] = lazyFields
+        return lazyFields
+    }
+
+    /**
+     * The fields of a class that matter to the lazy fields: the String fields and the lazy ones among them.
+     */
+    private inner class ScannedClass : ClassVisitor(Opcodes.ASM5) {
+        lateinit var name: String
+        var superName: String? = null
+        val stringFields = hashSetOf<String>()
+        val lazyFields = hashSetOf<String>()
+        private var isInterface = false
+        private var concatEmitter: StringConcatEmitter? = null
+
+        override fun visit(
+            version: Int,
+            access: Int,
+            name: String,
+            signature: String?,
+            superName: String?,
+            interfaces: Array<out String>?
+        ) {
+            this.name = name
+            this.superName = superName
+            isInterface = access and Opcodes.ACC_INTERFACE != 0
+            concatEmitter = StringConcatEmitter(fieldIndex, ConcatStrategy.AUTO, version)
+        }
+
+        /**
+         * The same fields as the ones the StringReplaceClassInvitor makes lazy.
+         */
+        override fun visitField(
+            access: Int,
+            name: String,
+            desc: String,
+            signature: String?,
+            value: Any?
+        ): FieldVisitor? {
+            if (BuildConfigConstants.STRING_DESCRIPTOR != desc) return null
+            stringFields += name
+            if (!isInterface && access and Opcodes.ACC_STATIC != 0 && value is String &&
+                true == concatEmitter?.hasDelegateCall(value)
+            ) {
+                lazyFields += name
+            }
+            return null
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.android.plugin.buildconfig.engine
+
+import com.android.plugin.buildconfig.BuildConfigConstants
+import com.android.plugin.buildconfig.BuildConfigFieldIndex
+import com.android.plugin.buildconfig.LazyStaticFieldIndex
+import org.apache.commons.compress.archivers.zip.X000A_NTFS
+import org.apache.commons.compress.archivers.zip.X5455_ExtendedTimestamp
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream
+import org.apache.commons.compress.archivers.zip.ZipFile
+import org.apache.commons.io.FileUtils
+import java.io.File
+import java.io.IOException
+import java.io.UncheckedIOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.Calendar
+import java.util.GregorianCalendar
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.Future
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+
+/**
+ * The rewriting engine. It replaces the BuildConfig constants in directories and jars with the delegate calls.
+ *
+ * The engine only depends on the JVM and ASM, so besides the Android transform it can be used by a command line tool
+ * or a benchmark.
+ * 1. Each jar and each directory is a task on a ForkJoinPool, and a directory forks a sub task for every file.
+ * 2. Each task writes its own output, so the output does not depend on the order the tasks finished in.
+ *
+ * @param lazyFieldIndex The lazy static fields of all the inputs, see [LazyStaticFieldScanner].
+ * @see com.android.plugin.buildconfig.transform.BuildConfigDelegateTransform
+ * @see BuildConfigRewriteCli
+ */
+class RewriteEngine(
+    fieldIndex: BuildConfigFieldIndex,
+    private val options: RewriteOptions,
+    lazyFieldIndex: LazyStaticFieldIndex
+) {
+    private val cache = options.cacheDir?.let { cacheDir ->
+        //The options and the lazy fields change the rewritten classes as well, so they are a part of the key.
+        ClassRewriteCache(
+            cacheDir,
+            options.cacheSize,
+            fieldIndex.fingerprint + "#" + lazyFieldIndex.fingerprint + "#" + options.outputFingerprint()
+        )
+    }
+    private val classRewriter = ClassRewriter(fieldIndex, options, lazyFieldIndex, cache)
+
+    /**
+     * Run all the requests and wait for them.
+     */
+    fun rewrite(requests: List<RewriteRequest>, report: RewriteReport) {
+        val executor = ForkJoinPool(options.workerCount)
+        try {
+            val tasks = requests.map { request ->
+                executor.submit(Runnable {
+                    val inputReport = when (request) {
+                        is RewriteRequest.Directory -> report.newInput(request.name, "directory")
+                        is RewriteRequest.Jar -> report.newInput(request.name, "jar")
+                    }
+                    val startTime = System.nanoTime()
+                    when (request) {
+                        is RewriteRequest.Directory -> rewriteDirectory(request, inputReport)
+                        is RewriteRequest.Jar -> rewriteJar(request, inputReport)
+                    }
+                    inputReport.onFinished(System.nanoTime() - startTime)
+                })
+            }
+            awaitAll(tasks)
+        } finally {
+            executor.shutdown()
+        }
+        if (null != cache) {
+            cache.trim()
+            report.onCacheStatistics(cache.getHitCount(), cache.getMissCount())
+        }
+    }
+
+    private fun awaitAll(tasks: List<Future<*>>) {
+        tasks.forEach { task ->
+            try {
+                task.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    }
+
+    private fun rewriteDirectory(request: RewriteRequest.Directory, inputReport: RewriteReport.InputReport) {
+        val changedFiles = request.changedFiles
+        if (null == changedFiles) {
+            rewriteAllFiles(request.inputDir, request.outputDir, inputReport)
+        } else {
+            rewriteChangedFiles(request.inputDir, request.outputDir, changedFiles, inputReport)
+        }
+    }
+
+    /**
+     * Rewrite all the files of the directory straight into the output folder.
+     * The input folder is never modified, so the up-to-date state of the compile tasks stays valid.
+     */
+    private fun rewriteAllFiles(inputDir: File, outputDir: File, inputReport: RewriteReport.InputReport) {
+        if (!inputDir.isDirectory) return
+        val files = inputDir.walk().filter { it.isFile }.toList()
+        ForkJoinTask.invokeAll(files.map { file ->
+            ForkJoinTask.adapt(Runnable {
+                val relativePath = file.relativeTo(inputDir).path
+                rewriteDirectoryFile(file, relativePath, File(outputDir, relativePath), inputReport)
+            })
+        })
+    }
+
+    /**
+     * Only handle the files that changed since the last run.
+     * The removed files are deleted from the output folder, the added or changed files are rewritten again.
+     */
+    private fun rewriteChangedFiles(
+        inputDir: File,
+        outputDir: File,
+        changedFiles: Map<File, RewriteRequest.FileChange>,
+        inputReport: RewriteReport.InputReport
+    ) {
+        ForkJoinTask.invokeAll(changedFiles.map { (file, change) ->
+            ForkJoinTask.adapt(Runnable {
+                val relativePath = file.relativeTo(inputDir).path
+                val destFile = File(outputDir, relativePath)
+                when (change) {
+                    RewriteRequest.FileChange.REMOVED -> FileUtils.deleteQuietly(destFile)
+                    RewriteRequest.FileChange.ADDED, RewriteRequest.FileChange.CHANGED -> {
+                        if (file.isFile) {
+                            rewriteDirectoryFile(file, relativePath, destFile, inputReport)
+                        }
+                    }
+                }
+            })
+        })
+    }
+
+    /**
+     * Write the class to the destination, the bytes we have already read are written as they are.
+     * The other files are copied directly.
+     */
+    private fun rewriteDirectoryFile(
+        file: File,
+        relativePath: String,
+        destFile: File,
+        inputReport: RewriteReport.InputReport
+    ) {
+        try {
+            destFile.parentFile.mkdirs()
+            if (isTransformableClassFile(file.name, options.passThrough)) {
+                val bytes = file.readBytes()
+                destFile.writeBytes(rewriteClass(bytes, relativePath, inputReport))
+            } else {
+                Files.copy(file.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+            inputReport.onBytesRead(file.length())
+            inputReport.onBytesWritten(destFile.length())
+        } catch (e: IOException) {
+            throw UncheckedIOException(e)
+        }
+    }
+
+    /**
+     * A class that fails to rewrite, e.g., a malformed class of a third party jar, is written as it is.
+     * The directories and the jars both fall back per class, so one bad class never fails the whole transform.
+     */
+    private fun rewriteClass(bytes: ByteArray, className: String, inputReport: RewriteReport.InputReport): ByteArray {
+        return try {
+            classRewriter.rewrite(bytes, className, inputReport)
+        } catch (e: Exception) {
+            System.err.println("Process class:$className failed: $e")
+            inputReport.onClassFailed(className, e)
+            bytes
+        }
+    }
+
+    private fun rewriteJar(request: RewriteRequest.Jar, inputReport: RewriteReport.InputReport) {
+        val destFile = request.outputJar
+        if (destFile.exists()) {
+            destFile.delete()
+        }
+        try {
+            processAndTransformJar(request.inputJar, destFile, inputReport)
+        } catch (e: IOException) {
+            throw UncheckedIOException(e)
+        }
+    }
+
+    /**
+     * Transform a jar with as little work as possible.
+     * 1. Only the class entries are inflated and scanned, the resources are never read.
+     * 2. If none of the classes changed, the jar is copied as it is.
+     * 3. Otherwise, the unchanged entries are copied with their raw compressed data and only the rewritten classes
+     * are compressed again.
+     *
+     * The output is reproducible, so the dex and merge tasks after us can hit the build cache:
+     * the entries are sorted by name, all of them use a fixed timestamp and keep their compression method.
+     */
+    @Throws(IOException::class)
+    private fun processAndTransformJar(
+        sourceFile: File,
+        destFile: File,
+        inputReport: RewriteReport.InputReport
+    ) {
+        if (!sourceFile.exists()) return
+        destFile.parentFile.mkdirs()
+        ZipFile(sourceFile).use { zipFile ->
+            val rewrittenClasses = mutableMapOf<String, ByteArray>()
+            zipFile.entriesInPhysicalOrder.asSequence().filter { entry ->
+                !entry.isDirectory && isTransformableJarEntry(entry.name, options.passThrough)
+            }.forEach { entry ->
+                val bytes = zipFile.getInputStream(entry).use { it.readBytes() }
+                val newBytes = rewriteClass(bytes, entry.name, inputReport)
+                if (newBytes !== bytes) {
+                    rewrittenClasses[entry.name] = newBytes
+                }
+            }
+            inputReport.onBytesRead(sourceFile.length())
+            if (rewrittenClasses.isEmpty()) {
+                Files.copy(sourceFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+                inputReport.onBytesWritten(destFile.length())
+                return
+            }
+            //The temporary file only depends on the destination, so a failed run leaves nothing random behind.
+            val newDestFile = File(destFile.parent, destFile.name + TEMP_FILE_SUFFIX)
+            ZipArchiveOutputStream(newDestFile).use { zipOutputStream ->
+                val entries = zipFile.entriesInPhysicalOrder.asSequence().sortedBy { it.name }
+                val writtenEntries = mutableSetOf<String>()
+                entries.filter { writtenEntries.add(it.name) }.forEach { entry ->
+                    val bytes = rewrittenClasses[entry.name]
+                    if (null == bytes) {
+                        zipFile.getRawInputStream(entry).use {
+                            zipOutputStream.addRawArchiveEntry(createStableEntry(entry), it)
+                        }
+                    } else {
+                        zipOutputStream.putArchiveEntry(createRewrittenEntry(entry, bytes))
+                        zipOutputStream.write(bytes)
+                        zipOutputStream.closeArchiveEntry()
+                    }
+                }
+            }
+            //Replace the old file with the new file.
+            Files.move(newDestFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            inputReport.onBytesWritten(destFile.length())
+        }
+    }
+
+    /**
+     * Copy the entry with the fixed timestamp. The extra fields holding another timestamp are removed.
+     */
+    private fun createStableEntry(entry: ZipArchiveEntry): ZipArchiveEntry {
+        val newEntry = ZipArchiveEntry(entry)
+        newEntry.time = ZIP_ENTRY_TIME
+        TIMESTAMP_EXTRA_FIELDS.forEach { headerId ->
+            if (null != newEntry.getExtraField(headerId)) {
+                newEntry.removeExtraField(headerId)
+            }
+        }
+        return newEntry
+    }
+
+    /**
+     * Create the entry of a rewritten class with the same compression method as the original entry.
+     * A stored entry has to know its size and crc before the data is written.
+     */
+    private fun createRewrittenEntry(entry: ZipArchiveEntry, bytes: ByteArray): ZipArchiveEntry {
+        val newEntry = ZipArchiveEntry(entry.name)
+        newEntry.time = ZIP_ENTRY_TIME
+        if (ZipEntry.STORED == entry.method) {
+            val crc = CRC32()
+            crc.update(bytes)
+            newEntry.method = ZipEntry.STORED
+            newEntry.size = bytes.size.toLong()
+            newEntry.compressedSize = bytes.size.toLong()
+            newEntry.crc = crc.value
+        } else {
+            newEntry.method = ZipEntry.DEFLATED
+        }
+        return newEntry
+    }
+
+    companion object {
+        private const val TEMP_FILE_SUFFIX = ".tmp"
+
+        /**
+         * The same timestamp as the jars packaged by the Android Gradle plugin: 1980-02-01 00:00.
+         * It is created from the local calendar because the zip format stores the local time.
+         */
+        private val ZIP_ENTRY_TIME = GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).timeInMillis
+
+        private val TIMESTAMP_EXTRA_FIELDS = listOf(X5455_ExtendedTimestamp.HEADER_ID, X000A_NTFS.HEADER_ID)
+
+        /**
+         * The BuildConfig class keeps its markers for the delegate, a pass-through variant unwraps them as well.
+         */
+        internal fun isTransformableClassFile(fileName: String, passThrough: Boolean): Boolean {
+            return fileName.endsWith(".class") &&
+                    !fileName.startsWith("R$") &&
+                    fileName != BuildConfigConstants.DELEGATE_CLASS_NAME + ".class" &&
+                    "R.class" != fileName &&
+                    (passThrough || "BuildConfig.class" != fileName)
+        }
+
+        internal fun isTransformableJarEntry(jarEntryName: String, passThrough: Boolean): Boolean {
+            return jarEntryName.endsWith(".class") &&
+                    !jarEntryName.contains("R$") &&
+                    !jarEntryName.endsWith("R.class") &&
+                    (passThrough || !jarEntryName.endsWith("BuildConfig.class"))
+        }
+    }
+}
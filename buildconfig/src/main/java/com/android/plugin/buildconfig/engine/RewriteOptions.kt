@@ -0,0 +1,38 @@
+package com.android.plugin.buildconfig.engine
+
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
+import java.io.File
+
+/**
+ * The options of the [RewriteEngine].
+ *
+ * @param workerCount The number of threads that rewrite the classes and jars.
+ * @param cacheDir The folder of the persistent cache, null disables the cache.
+ * @param cacheSize The maximum size of the cache in bytes.
+ * @param concatStrategy How the rewritten constant strings are put together.
+ * @param callSiteCache Cache the value of each rewritten site in a synthetic slot of its class.
+ * @param loopSiteCache Without the [callSiteCache], still cache the rewritten sites inside a loop.
+ * @param passThrough Unwrap the markers back to the plain literals instead of calling the delegate, e.g., for release.
+ * @param lazyStaticFields Initialize the static fields that contain a BuildConfig field on the first read.
+ */
+data class RewriteOptions(
+    val workerCount: Int = Runtime.getRuntime().availableProcessors(),
+    val cacheDir: File? = null,
+    val cacheSize: Long = DEFAULT_CACHE_SIZE,
+    val concatStrategy: ConcatStrategy = ConcatStrategy.AUTO,
+    val callSiteCache: Boolean = true,
+    val loopSiteCache: Boolean = true,
+    val passThrough: Boolean = false,
+    val lazyStaticFields: Boolean = false
+) {
+    /**
+     * The options that change the rewritten classes, they are a part of the cache key.
+     */
+    fun outputFingerprint(): String {
+        return concatStrategy.name + "#" + callSiteCache + "#" + loopSiteCache + "#" + passThrough + "#" + lazyStaticFields
+    }
+
+    companion object {
+        const val DEFAULT_CACHE_SIZE = 256L * 1024 * 1024
+    }
+}
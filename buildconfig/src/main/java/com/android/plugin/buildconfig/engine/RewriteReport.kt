@@ -0,0 +1,202 @@
+package com.android.plugin.buildconfig.engine
+
+import com.google.gson.GsonBuilder
+import java.io.File
+import java.util.PriorityQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The performance report of one rewrite run, e.g., one variant's transform.
+ * All the counters are updated concurrently by the rewrite tasks, and [write] serializes a snapshot as json.
+ *
+ * The report contains:
+ * 1. The wall time of each jar and directory.
+ * 2. The classes scanned, skipped and rewritten, the LDC sites replaced and the bytes read and written.
+ * 3. The slowest classes to rewrite.
+ * 4. The rewritten sites inside a loop that were routed to a cached slot.
+ * 5. The classes that failed to rewrite and were written as they are.
+ */
+class RewriteReport(
+    private val name: String,
+    private val incremental: Boolean,
+    private val workers: Int
+) {
+    private val startTime = System.nanoTime()
+    private val inputs = ConcurrentLinkedQueue<InputReport>()
+    /**
+     * A min-heap of the slowest classes so far, the fastest of them is dropped first. It never holds more than
+     * [SLOWEST_CLASS_COUNT] timings, however many classes the run rewrites.
+     */
+    private val classTimings = PriorityQueue<ClassTiming>(SLOWEST_CLASS_COUNT + 1, compareBy { it.timeUs })
+    private val loopSites = ConcurrentLinkedQueue<LoopSite>()
+    private val failedClasses = ConcurrentLinkedQueue<FailedClass>()
+    private var cacheHits = 0L
+    private var cacheMisses = 0L
+
+    fun newInput(name: String, type: String): InputReport {
+        val inputReport = InputReport(name, type)
+        inputs.add(inputReport)
+        return inputReport
+    }
+
+    fun onCacheStatistics(hits: Long, misses: Long) {
+        cacheHits = hits
+        cacheMisses = misses
+    }
+
+    /**
+     * Write the report as json.
+     */
+    fun write(reportFile: File) {
+        val inputSummaries = inputs.map { it.summary() }.sortedBy { it.name }
+        val summary = Summary(
+            name = name,
+            incremental = incremental,
+            workers = workers,
+            wallTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+            classesScanned = inputSummaries.sumOf { it.classesScanned },
+            classesSkipped = inputSummaries.sumOf { it.classesSkipped },
+            classesRewritten = inputSummaries.sumOf { it.classesRewritten },
+            classesFailed = inputSummaries.sumOf { it.classesFailed },
+            ldcSitesReplaced = inputSummaries.sumOf { it.ldcSitesReplaced },
+            bytesRead = inputSummaries.sumOf { it.bytesRead },
+            bytesWritten = inputSummaries.sumOf { it.bytesWritten },
+            cacheHits = cacheHits,
+            cacheMisses = cacheMisses,
+            inputs = inputSummaries,
+            slowestClasses = synchronized(classTimings) { classTimings.sortedByDescending { it.timeUs } },
+            loopSites = loopSites.sortedWith(compareBy({ it.className }, { it.site })),
+            failedClasses = failedClasses.sortedBy { it.name }
+        )
+        reportFile.parentFile.mkdirs()
+        reportFile.writeText(GsonBuilder().setPrettyPrinting().create().toJson(summary))
+    }
+
+    private fun onClassTiming(classTiming: ClassTiming) {
+        synchronized(classTimings) {
+            if (classTimings.size < SLOWEST_CLASS_COUNT) {
+                classTimings.add(classTiming)
+            } else if (classTimings.peek().timeUs < classTiming.timeUs) {
+                classTimings.poll()
+                classTimings.add(classTiming)
+            }
+        }
+    }
+
+    /**
+     * The counters of a jar or a directory.
+     */
+    inner class InputReport(private val name: String, private val type: String) {
+        private val wallTime = AtomicLong()
+        private val classesScanned = AtomicLong()
+        private val classesSkipped = AtomicLong()
+        private val classesRewritten = AtomicLong()
+        private val classesFailed = AtomicLong()
+        private val ldcSitesReplaced = AtomicLong()
+        private val bytesRead = AtomicLong()
+        private val bytesWritten = AtomicLong()
+
+        /**
+         * A class that does not reference any BuildConfig field.
+         */
+        fun onClassSkipped() {
+            classesScanned.incrementAndGet()
+            classesSkipped.incrementAndGet()
+        }
+
+        /**
+         * A class that went through the visitors, either rewritten or loaded from the cache.
+         * @param loopSites The sites inside a loop that were routed to a cached slot, e.g., `run()V#0`.
+         */
+        fun onClassRewritten(className: String, ldcSites: Int, loopSites: List<String>, timeNanos: Long) {
+            classesScanned.incrementAndGet()
+            if (0 < ldcSites) {
+                classesRewritten.incrementAndGet()
+                ldcSitesReplaced.addAndGet(ldcSites.toLong())
+            }
+            onClassTiming(ClassTiming(className, TimeUnit.NANOSECONDS.toMicros(timeNanos)))
+            loopSites.forEach { this@RewriteReport.loopSites.add(LoopSite(className, it)) }
+        }
+
+        /**
+         * A class that could not be rewritten, the original bytes are written instead.
+         */
+        fun onClassFailed(className: String, error: Throwable) {
+            classesScanned.incrementAndGet()
+            classesFailed.incrementAndGet()
+            failedClasses.add(FailedClass(className, error.toString()))
+        }
+
+        fun onBytesRead(length: Long) {
+            bytesRead.addAndGet(length)
+        }
+
+        fun onBytesWritten(length: Long) {
+            bytesWritten.addAndGet(length)
+        }
+
+        fun onFinished(timeNanos: Long) {
+            wallTime.addAndGet(timeNanos)
+        }
+
+        internal fun summary(): InputSummary {
+            return InputSummary(
+                name = name,
+                type = type,
+                wallTimeMs = TimeUnit.NANOSECONDS.toMillis(wallTime.get()),
+                classesScanned = classesScanned.get(),
+                classesSkipped = classesSkipped.get(),
+                classesRewritten = classesRewritten.get(),
+                classesFailed = classesFailed.get(),
+                ldcSitesReplaced = ldcSitesReplaced.get(),
+                bytesRead = bytesRead.get(),
+                bytesWritten = bytesWritten.get()
+            )
+        }
+    }
+
+    private class Summary(
+        val name: String,
+        val incremental: Boolean,
+        val workers: Int,
+        val wallTimeMs: Long,
+        val classesScanned: Long,
+        val classesSkipped: Long,
+        val classesRewritten: Long,
+        val classesFailed: Long,
+        val ldcSitesReplaced: Long,
+        val bytesRead: Long,
+        val bytesWritten: Long,
+        val cacheHits: Long,
+        val cacheMisses: Long,
+        val inputs: List<InputSummary>,
+        val slowestClasses: List<ClassTiming>,
+        val loopSites: List<LoopSite>,
+        val failedClasses: List<FailedClass>
+    )
+
+    internal class InputSummary(
+        val name: String,
+        val type: String,
+        val wallTimeMs: Long,
+        val classesScanned: Long,
+        val classesSkipped: Long,
+        val classesRewritten: Long,
+        val classesFailed: Long,
+        val ldcSitesReplaced: Long,
+        val bytesRead: Long,
+        val bytesWritten: Long
+    )
+
+    private class ClassTiming(val name: String, val timeUs: Long)
+
+    private class LoopSite(val className: String, val site: String)
+
+    private class FailedClass(val name: String, val error: String)
+
+    companion object {
+        private const val SLOWEST_CLASS_COUNT = 20
+    }
+}
@@ -0,0 +1,29 @@
+package com.android.plugin.buildconfig.engine
+
+import java.io.File
+
+/**
+ * A unit of work for the [RewriteEngine]: a directory of classes or a jar.
+ * Each request writes to its own output, so the requests can run in any order.
+ */
+sealed class RewriteRequest(val name: String) {
+    /**
+     * Rewrite a class directory into [outputDir].
+     * @param changedFiles The files changed since the last run. null means all the files should be rewritten.
+     */
+    class Directory(
+        name: String,
+        val inputDir: File,
+        val outputDir: File,
+        val changedFiles: Map<File, FileChange>? = null
+    ) : RewriteRequest(name)
+
+    /**
+     * Rewrite a jar into [outputJar].
+     */
+    class Jar(name: String, val inputJar: File, val outputJar: File) : RewriteRequest(name)
+
+    enum class FileChange {
+        ADDED, CHANGED, REMOVED
+    }
+}
@@ -0,0 +1,108 @@
+package com.android.plugin.buildconfig.task
+
+import com.android.plugin.buildconfig.BuildConfigClassField
+import com.android.plugin.buildconfig.BuildConfigConstants
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+
+/**
+ * Write the BuildConfig fields of a module to the binary asset read by the BuildConfigDelegate.
+ * The delegate reads the whole file with one read and parses it without any json parser.
+ * All the numbers are big-endian:
+ * ```
+ * magic(u4) length(u4): the length of the rest of the file
+ * version(u2)
+ * string_count(u4) strings: length(u4) UTF-8 bytes
+ * module(u4)
+ * flavor_count(u4) flavors: flavor(u4) field_offset(u4) field_count(u4)
+ * fields: name(u4) tag(u1) value
+ * ```
+ * The module, the flavor and the name are indexes of the string table, so each text is only stored once.
+ * The field offset is relative to the first field. The value depends on the tag:
+ * STRING: string index(u4), BOOLEAN: u1, INT: u4, LONG: u8, OTHER: type(u4) and source text(u4) string indexes.
+ */
+object BuildConfigAssetWriter {
+
+    fun write(module: String, variantFields: Map<String, List<BuildConfigClassField>>, file: File) {
+        val strings = linkedMapOf<String, Int>()
+        fun indexOf(text: String) = strings.getOrPut(text) { strings.size }
+
+        val moduleIndex = indexOf(module)
+        val fieldBytes = ByteArrayOutputStream()
+        val fieldOutput = DataOutputStream(fieldBytes)
+        //flavor index, field offset, field count
+        val flavorEntries = mutableListOf<IntArray>()
+        variantFields.forEach { (flavor, classFields) ->
+            flavorEntries += intArrayOf(indexOf(flavor), fieldOutput.size(), classFields.size)
+            classFields.forEach { classField ->
+                fieldOutput.writeInt(indexOf(classField.name))
+                writeValue(fieldOutput, classField, ::indexOf)
+            }
+        }
+        fieldOutput.flush()
+
+        val bodyBytes = ByteArrayOutputStream()
+        val body = DataOutputStream(bodyBytes)
+        body.writeShort(BuildConfigConstants.ASSET_VERSION)
+        body.writeInt(strings.size)
+        strings.keys.forEach { text ->
+            val bytes = text.toByteArray(Charsets.UTF_8)
+            body.writeInt(bytes.size)
+            body.write(bytes)
+        }
+        body.writeInt(moduleIndex)
+        body.writeInt(flavorEntries.size)
+        flavorEntries.forEach { entry -> entry.forEach(body::writeInt) }
+        fieldBytes.writeTo(body)
+        body.flush()
+
+        DataOutputStream(file.outputStream().buffered()).use { output ->
+            output.writeInt(BuildConfigConstants.ASSET_MAGIC)
+            output.writeInt(bodyBytes.size())
+            bodyBytes.writeTo(output)
+        }
+    }
+
+    /**
+     * The String values are unwrapped at build time: `BuildConfig#app#https://help.com` -> https://help.com
+     * The other values are the java source text, they keep the text if it is not a plain literal, e.g., 1 << 4.
+     */
+    private fun writeValue(output: DataOutputStream, classField: BuildConfigClassField, indexOf: (String) -> Int) {
+        val value = classField.value
+        when (classField.type) {
+            BuildConfigConstants.TYPE_STRING -> {
+                output.writeByte(BuildConfigConstants.ASSET_TAG_STRING)
+                output.writeInt(indexOf(unwrapValue(value)))
+                return
+            }
+            "boolean" -> if ("true" == value || "false" == value) {
+                output.writeByte(BuildConfigConstants.ASSET_TAG_BOOLEAN)
+                output.writeByte(if (value.toBoolean()) 1 else 0)
+                return
+            }
+            "int" -> value.toIntOrNull()?.let { intValue ->
+                output.writeByte(BuildConfigConstants.ASSET_TAG_INT)
+                output.writeInt(intValue)
+                return
+            }
+            "long" -> value.removeSuffix("L").removeSuffix("l").toLongOrNull()?.let { longValue ->
+                output.writeByte(BuildConfigConstants.ASSET_TAG_LONG)
+                output.writeLong(longValue)
+                return
+            }
+        }
+        output.writeByte(BuildConfigConstants.ASSET_TAG_OTHER)
+        output.writeInt(indexOf(classField.type))
+        output.writeInt(indexOf(value))
+    }
+
+    /**
+     * `BuildConfig#app#https://help.com` -> https://help.com
+     */
+    @JvmStatic
+    fun unwrapValue(value: String): String {
+        val matcher = BuildConfigConstants.BUILD_CONFIG_VALUE_PATTERN.matcher(value)
+        return if (matcher.matches()) matcher.group("value") else value
+    }
+}
@@ -1,5 +1,7 @@
 package com.android.plugin.buildconfig.task;
 
+import com.android.plugin.buildconfig.BuildConfigClassField;
+import com.android.plugin.buildconfig.BuildConfigConstants;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
@@ -11,17 +13,32 @@ import com.squareup.javapoet.TypeSpec;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.lang.model.element.Modifier;
 
 public class BuildConfigDelegateGenerator {
+    /**
+     * The fields of each embedded holder class. Each field is four strings in the array initializer, about 32 bytes of
+     * bytecode, so a holder stays well below the 64KB limit of a method and of a constant pool.
+     */
+    private static final int EMBEDDED_FIELDS_PER_CLASS = 1000;
+    private static final String EMBEDDED_FIELDS_CLASS_PREFIX = "EmbeddedFields";
+
+    /**
+     * module -> name -> ClassField, the lookup table of one flavor.
+     */
+    private static TypeName getFieldTableType() {
+        TypeName string = ClassName.get(String.class);
+        TypeName classFieldType = ClassName.bestGuess("ClassField");
+        TypeName nameClassFieldMap = ParameterizedTypeName.get(ClassName.get(Map.class), string, classFieldType);
+        return ParameterizedTypeName.get(ClassName.get(Map.class), string, nameClassFieldMap);
+    }
+
     private List<FieldSpec> getBuildConfigDelegateFields(String packageName, String flavorName, String className) {
         TypeName string = ClassName.get(String.class);
         TypeName booleanType = ClassName.get(Boolean.class);
@@ -45,10 +62,6 @@ public class BuildConfigDelegateGenerator {
                 .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
                 .initializer("new $T()", buildConfigDelegateFieldType).build();
 
-        FieldSpec patternFieldSpec = FieldSpec.builder(Pattern.class, "BUILD_CONFIG_VALUE_PATTERN")
-                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
-                .initializer("Pattern.compile(\"`BuildConfig#(?<module>[\\\\w-]+)#(?<value>.+?)`\")").build();
-
         FieldSpec flavorSetFieldSpec = FieldSpec.builder(stringSetType, "flavorSet")
                 .addModifiers(Modifier.PUBLIC)
                 .initializer("new $T()", stringTreeSetType).build();
@@ -61,21 +74,48 @@ public class BuildConfigDelegateGenerator {
                 .addModifiers(Modifier.PUBLIC)
                 .initializer("new $T()", stringClassFieldListHashMap).build();
 
+        //flavor -> module -> name -> ClassField, so getString never walks the field list.
+        TypeName fieldTableType = getFieldTableType();
+        TypeName flavorFieldTablesType = ParameterizedTypeName.get(ClassName.get(Map.class), string, fieldTableType);
+        TypeName flavorFieldTablesHashMapType = ParameterizedTypeName
+                .get(ClassName.get(HashMap.class), string, fieldTableType);
+        FieldSpec flavorFieldTablesFieldSpec = FieldSpec.builder(flavorFieldTablesType, "flavorFieldTables")
+                .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T()", flavorFieldTablesHashMapType).build();
+
+        //The table of the current flavor, it is replaced when the flavor changes.
+        //getString reads it without a lock, so the new table has to be published to the other threads.
+        FieldSpec currentFieldTableFieldSpec = FieldSpec.builder(fieldTableType, "currentFieldTable")
+                .addModifiers(Modifier.PRIVATE, Modifier.VOLATILE)
+                .initializer("$T.emptyMap()", Collections.class).build();
+
         FieldSpec packageFlavorFieldSpec = FieldSpec.builder(string, "packageFlavor")
                 .initializer("$S", flavorName)
                 .addModifiers(Modifier.PRIVATE).build();
 
         FieldSpec currentFlavorFieldSpec = FieldSpec.builder(string, "currentFlavor")
                 .initializer("$S", flavorName)
-                .addModifiers(Modifier.PRIVATE).build();
+                .addModifiers(Modifier.PRIVATE, Modifier.VOLATILE).build();
+
+        FieldSpec lookupListenerFieldSpec = FieldSpec.builder(ClassName.bestGuess("LookupListener"), "lookupListener")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE).build();
+
+        //The rewritten call sites cache their value in a slot, the slot is valid until the generation changes.
+        //generation++ is not atomic, so the methods that change it are synchronized. The volatile write comes after
+        //the new field table, so a site that sees the new generation also sees the new table.
+        FieldSpec generationFieldSpec = FieldSpec.builder(int.class, "generation")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.VOLATILE).build();
         List<FieldSpec> fieldSpecList = new ArrayList<>();
-        fieldSpecList.add(patternFieldSpec);
         fieldSpecList.add(instanceFieldSpec);
         fieldSpecList.add(flavorSetFieldSpec);
         fieldSpecList.add(disabledClassFieldSpec);
         fieldSpecList.add(flavorClassListFieldSpec);
+        fieldSpecList.add(flavorFieldTablesFieldSpec);
+        fieldSpecList.add(currentFieldTableFieldSpec);
         fieldSpecList.add(packageFlavorFieldSpec);
         fieldSpecList.add(currentFlavorFieldSpec);
+        fieldSpecList.add(generationFieldSpec);
+        fieldSpecList.add(lookupListenerFieldSpec);
 
         return fieldSpecList;
     }
@@ -84,18 +124,22 @@ public class BuildConfigDelegateGenerator {
         MethodSpec constructor = MethodSpec.constructorBuilder()
                 .addModifiers(Modifier.PUBLIC)
                 .addParameter(String.class, "flavor")
+                .addParameter(String.class, "module")
                 .addParameter(String.class, "name")
                 .addParameter(String.class, "type")
                 .addParameter(String.class, "value")
                 .addStatement("this.$N = $N", "flavor", "flavor")
+                .addStatement("this.$N = $N", "module", "module")
                 .addStatement("this.$N = $N", "name", "name")
                 .addStatement("this.$N = $N", "type", "type")
                 .addStatement("this.$N = $N", "value", "value")
                 .build();
 
         TypeSpec classTypeSpec = TypeSpec.classBuilder("ClassField")
+                .addJavadoc("The value is unwrapped at build time, e.g., https://help.com instead of the marker.\n")
                 .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
                 .addField(String.class, "flavor", Modifier.PUBLIC, Modifier.FINAL)
+                .addField(String.class, "module", Modifier.PUBLIC, Modifier.FINAL)
                 .addField(String.class, "name", Modifier.PUBLIC, Modifier.FINAL)
                 .addField(String.class, "type", Modifier.PUBLIC, Modifier.FINAL)
                 .addField(String.class, "value", Modifier.PUBLIC, Modifier.FINAL)
@@ -104,79 +148,301 @@ public class BuildConfigDelegateGenerator {
         return classTypeSpec;
     }
 
+    private TypeSpec getSlotTypeSpec() {
+        MethodSpec constructor = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(int.class, "generation")
+                .addParameter(String.class, "value")
+                .addStatement("this.$N = $N", "generation", "generation")
+                .addStatement("this.$N = $N", "value", "value")
+                .build();
+
+        return TypeSpec.classBuilder("Slot")
+                .addJavadoc("The cached value of a rewritten call site.\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .addField(int.class, "generation", Modifier.PUBLIC, Modifier.FINAL)
+                .addField(String.class, "value", Modifier.PUBLIC, Modifier.FINAL)
+                .addMethod(constructor)
+                .build();
+    }
+
+    private TypeSpec getLookupListenerTypeSpec() {
+        MethodSpec onLookup = MethodSpec.methodBuilder("onLookup")
+                .addJavadoc("@param found false if the field is unknown and the value is the default value.\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.ABSTRACT)
+                .addParameter(String.class, "module")
+                .addParameter(String.class, "key")
+                .addParameter(String.class, "value")
+                .addParameter(boolean.class, "found")
+                .build();
+        return TypeSpec.interfaceBuilder("LookupListener")
+                .addJavadoc("Trace the lookups of getString, it is only called when LOOKUP_TRACING is true.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addMethod(onLookup)
+                .build();
+    }
+
+    /**
+     * The flag is a compile-time constant, so javac and R8 drop the tracing code of getString when it is false.
+     */
+    private FieldSpec getLookupTracingFieldSpec(boolean lookupTracing) {
+        return FieldSpec.builder(boolean.class, "LOOKUP_TRACING")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", lookupTracing).build();
+    }
+
+    /**
+     * Read the binary asset of each module, see {@link BuildConfigAssetWriter} for the format.
+     * The JSONException is still declared, so the callers that catch it keep compiling.
+     */
     private MethodSpec createInitialModuleBuildConfig() {
         TypeName ioExceptionType = ClassName.bestGuess("java.io.IOException");
         TypeName jsonExceptionType = ClassName.bestGuess("org.json.JSONException");
 
         TypeName contextType = ClassName.bestGuess("android.content.Context");
         TypeName assetManagerType = ClassName.bestGuess("android.content.res.AssetManager");
-        TypeName jSONArrayType = ClassName.bestGuess("org.json.JSONArray");
-        TypeName jSONObjectType = ClassName.bestGuess("org.json.JSONObject");
-        TypeName inputStreamType = ClassName.bestGuess("java.io.InputStream");
-        TypeName classFieldType = ClassName.bestGuess("ClassField");
-        TypeName classFieldListClass = ParameterizedTypeName.get(ClassName.get(List.class), classFieldType);
-        TypeName classFieldArrayListClass = ParameterizedTypeName.get(ClassName.get(ArrayList.class), classFieldType);
         return MethodSpec.methodBuilder("initialModuleBuildConfig")
                 .addException(ioExceptionType)
                 .addException(jsonExceptionType)
-                .addModifiers(Modifier.PUBLIC, Modifier.FINAL, Modifier.STATIC)
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL, Modifier.STATIC, Modifier.SYNCHRONIZED)
                 .addParameter(contextType, "context")
                 .addStatement("final $T assets = context.getAssets()", assetManagerType)
-                .addStatement("final $T[] buildConfigs = assets.list(\"buildconfig\")", String.class)
+                .addStatement("final $T[] buildConfigs = assets.list($S)", String.class,
+                        BuildConfigConstants.ASSET_FOLDER)
                 .beginControlFlow("if (null != buildConfigs)")
                 .beginControlFlow("for ($T fileName : buildConfigs)", String.class)
-                .addStatement("final $T inputStream = assets.open(\"buildconfig\" + \"/\" + fileName)", inputStreamType)
-                .addStatement("final int available = inputStream.available()")
-                .addStatement("byte[] bytes = new byte[available]")
-                .addStatement("inputStream.read(bytes)")
-                .addStatement("$T jsonObject = new $T(new $T(bytes));", jSONObjectType, jSONObjectType, String.class)
-                .addStatement("$T<String> iterator = jsonObject.keys()", Iterator.class)
-                .beginControlFlow("while (iterator.hasNext())")
-                .addStatement("String key = iterator.next()")
-                .addStatement("buildConfigDelegate.flavorSet.add(key)")
-                .addStatement("final int index = fileName.lastIndexOf(\".\")")
-                .addStatement("final String moduleName = fileName.substring(0, index)")
+                .beginControlFlow("if (fileName.endsWith($S))", BuildConfigConstants.ASSET_FILE_EXTENSION)
+                .addStatement("readBuildConfig(assets, $S + fileName)", BuildConfigConstants.ASSET_FOLDER + "/")
+                .endControlFlow()
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("updateCurrentFieldTable()")
+                .addStatement("generation++").build();
+    }
+
+    /**
+     * Read the whole asset with one read, then walk the flavor index and the fields of each flavor.
+     */
+    private MethodSpec readBuildConfig() {
+        TypeName ioExceptionType = ClassName.bestGuess("java.io.IOException");
+        TypeName assetManagerType = ClassName.bestGuess("android.content.res.AssetManager");
+        TypeName dataInputStreamType = ClassName.bestGuess("java.io.DataInputStream");
+        TypeName bufferedInputStreamType = ClassName.bestGuess("java.io.BufferedInputStream");
+        TypeName byteBufferType = ClassName.bestGuess("java.nio.ByteBuffer");
+        TypeName charsetType = ClassName.bestGuess("java.nio.charset.Charset");
+        TypeName classFieldType = ClassName.bestGuess("ClassField");
+        TypeName classFieldListClass = ParameterizedTypeName.get(ClassName.get(List.class), classFieldType);
+        TypeName classFieldArrayListClass = ParameterizedTypeName.get(ClassName.get(ArrayList.class), classFieldType);
+        return MethodSpec.methodBuilder("readBuildConfig")
+                .addException(ioExceptionType)
+                .addModifiers(Modifier.PRIVATE, Modifier.FINAL, Modifier.STATIC)
+                .addParameter(assetManagerType, "assets")
+                .addParameter(String.class, "path")
+                .addStatement("final $T inputStream = new $T(new $T(assets.open(path)))",
+                        dataInputStreamType, dataInputStreamType, bufferedInputStreamType)
+                .addStatement("final byte[] bytes")
+                .beginControlFlow("try")
+                .beginControlFlow("if ($L != inputStream.readInt())", BuildConfigConstants.ASSET_MAGIC)
+                .addStatement("throw new $T(\"Unknown build config asset: \" + path)", ioExceptionType)
+                .endControlFlow()
+                .addStatement("bytes = new byte[inputStream.readInt()]")
+                .addStatement("inputStream.readFully(bytes)")
+                .nextControlFlow("finally")
+                .addStatement("inputStream.close()")
+                .endControlFlow()
+                .addStatement("final $T buffer = $T.wrap(bytes)", byteBufferType, byteBufferType)
+                .beginControlFlow("if ($L != buffer.getShort())", BuildConfigConstants.ASSET_VERSION)
+                .addStatement("throw new $T(\"Unsupported build config asset version: \" + path)", ioExceptionType)
+                .endControlFlow()
+                .addStatement("final $T utf8 = $T.forName(\"UTF-8\")", charsetType, charsetType)
+                .addStatement("final String[] strings = new String[buffer.getInt()]")
+                .beginControlFlow("for (int i = 0; i < strings.length; i++)")
+                .addStatement("final int length = buffer.getInt()")
+                .addStatement("strings[i] = new String(bytes, buffer.position(), length, utf8)")
+                .addStatement("buffer.position(buffer.position() + length)")
+                .endControlFlow()
+                .addStatement("final String moduleName = strings[buffer.getInt()]")
                 .addStatement("$T classFieldList = buildConfigDelegate.flavorClassFields.get(moduleName)",
                         classFieldListClass)
                 .beginControlFlow("if (null == classFieldList)")
                 .addStatement("classFieldList = new $T()", classFieldArrayListClass)
                 .addStatement("buildConfigDelegate.flavorClassFields.put(moduleName, classFieldList)")
                 .endControlFlow()
-                .addStatement("$T objects = jsonObject.optJSONArray(key)", jSONArrayType)
-                .beginControlFlow("for (int i = 0; i < objects.length(); i++)")
-                .addCode("$T classFieldObject = objects.getJSONObject(i);\n" +
-                        "String name = classFieldObject.optString(\"name\");\n" +
-                        "String type = classFieldObject.optString(\"type\");\n" +
-                        "String value = classFieldObject.optString(\"value\");\n" +
-                        "if (\"String\".equals(type)) {\n" +
-                        "   classFieldList.add(new ClassField(key, name, type, value));\n" +
-                        "}\n", jSONObjectType)
+                .addStatement("final int flavorCount = buffer.getInt()")
+                .addStatement("final int indexStart = buffer.position()")
+                .addStatement("final int fieldStart = indexStart + flavorCount * 12")
+                .beginControlFlow("for (int i = 0; i < flavorCount; i++)")
+                .addStatement("final String flavor = strings[buffer.getInt(indexStart + i * 12)]")
+                .addStatement("final int fieldCount = buffer.getInt(indexStart + i * 12 + 8)")
+                .addStatement("buildConfigDelegate.flavorSet.add(flavor)")
+                .addStatement("buffer.position(fieldStart + buffer.getInt(indexStart + i * 12 + 4))")
+                .beginControlFlow("for (int j = 0; j < fieldCount; j++)")
+                .addStatement("final String name = strings[buffer.getInt()]")
+                .addStatement("final int tag = buffer.get()")
+                .beginControlFlow("if ($L == tag)", BuildConfigConstants.ASSET_TAG_STRING)
+                .addStatement("final ClassField classField = new ClassField(flavor, moduleName, name, $S, "
+                        + "strings[buffer.getInt()])", BuildConfigConstants.TYPE_STRING)
+                .addStatement("classFieldList.add(classField)")
+                .addStatement("putClassField(moduleName, classField)")
+                .nextControlFlow("else")
+                .addComment("Only the String fields are delegated, skip the values of the other types.")
+                .addStatement("buffer.position(buffer.position() + ($L == tag ? 1 : $L == tag ? 4 : 8))",
+                        BuildConfigConstants.ASSET_TAG_BOOLEAN, BuildConfigConstants.ASSET_TAG_INT)
                 .endControlFlow()
                 .endControlFlow()
                 .endControlFlow()
-                .endControlFlow().build();
+                .build();
     }
 
-    private MethodSpec findClassField() {
+    /**
+     * Compile the String fields into the static final arrays of the holder classes, four strings for each field:
+     * flavor, module, name and the unwrapped value. The static initializer of the delegate loads the holders into the
+     * same tables the assets go to, so the first getString needs no I/O and no Context.
+     */
+    private void addEmbeddedFields(TypeSpec.Builder buildConfigDelegateBuilder,
+            Map<String, Map<String, List<BuildConfigClassField>>> embeddedFields) {
+        Set<String> flavorSet = new TreeSet<>();
+        List<String> fieldValues = new ArrayList<>();
+        for (Map.Entry<String, Map<String, List<BuildConfigClassField>>> moduleEntry : embeddedFields.entrySet()) {
+            for (Map.Entry<String, List<BuildConfigClassField>> flavorEntry : moduleEntry.getValue().entrySet()) {
+                flavorSet.add(flavorEntry.getKey());
+                for (BuildConfigClassField classField : flavorEntry.getValue()) {
+                    if (BuildConfigConstants.TYPE_STRING.equals(classField.getType())) {
+                        fieldValues.add(flavorEntry.getKey());
+                        fieldValues.add(moduleEntry.getKey());
+                        fieldValues.add(classField.getName());
+                        fieldValues.add(BuildConfigAssetWriter.unwrapValue(classField.getValue()));
+                    }
+                }
+            }
+        }
+        CodeBlock.Builder staticBlock = CodeBlock.builder();
+        for (String flavor : flavorSet) {
+            staticBlock.addStatement("buildConfigDelegate.flavorSet.add($S)", flavor);
+        }
+        int stringsPerClass = EMBEDDED_FIELDS_PER_CLASS * 4;
+        for (int start = 0, index = 0; start < fieldValues.size(); start += stringsPerClass, index++) {
+            String holderName = EMBEDDED_FIELDS_CLASS_PREFIX + index;
+            List<String> holderValues = fieldValues
+                    .subList(start, Math.min(fieldValues.size(), start + stringsPerClass));
+            buildConfigDelegateBuilder.addType(getEmbeddedFieldsTypeSpec(holderName, holderValues));
+            staticBlock.addStatement("addEmbeddedFields($N.FIELDS)", holderName);
+        }
+        staticBlock.addStatement("updateCurrentFieldTable()");
+        MethodSpec initialModuleBuildConfig = MethodSpec.methodBuilder("initialModuleBuildConfig")
+                .addJavadoc("The fields are embedded in the class, there is nothing to load.\n")
+                .addException(ClassName.bestGuess("java.io.IOException"))
+                .addException(ClassName.bestGuess("org.json.JSONException"))
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL, Modifier.STATIC)
+                .addParameter(ClassName.bestGuess("android.content.Context"), "context")
+                .build();
+        buildConfigDelegateBuilder
+                .addStaticBlock(staticBlock.build())
+                .addMethod(initialModuleBuildConfig)
+                .addMethod(addEmbeddedFieldsMethod());
+    }
+
+    private TypeSpec getEmbeddedFieldsTypeSpec(String holderName, List<String> holderValues) {
+        CodeBlock.Builder initializer = CodeBlock.builder().add("{\n").indent();
+        for (int i = 0; i < holderValues.size(); i += 4) {
+            initializer.add("$S, $S, $S, $S,\n", holderValues.get(i), holderValues.get(i + 1),
+                    holderValues.get(i + 2), holderValues.get(i + 3));
+        }
+        initializer.unindent().add("}");
+        FieldSpec fieldsFieldSpec = FieldSpec.builder(String[].class, "FIELDS")
+                .addModifiers(Modifier.STATIC, Modifier.FINAL)
+                .initializer(initializer.build()).build();
+        return TypeSpec.classBuilder(holderName)
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .addField(fieldsFieldSpec)
+                .build();
+    }
+
+    private MethodSpec addEmbeddedFieldsMethod() {
         TypeName classFieldType = ClassName.bestGuess("ClassField");
         TypeName classFieldListClass = ParameterizedTypeName.get(ClassName.get(List.class), classFieldType);
-        return MethodSpec.methodBuilder("findClassField")
-                .addParameter(String.class, "key")
+        TypeName classFieldArrayListClass = ParameterizedTypeName.get(ClassName.get(ArrayList.class), classFieldType);
+        return MethodSpec.methodBuilder("addEmbeddedFields")
+                .addModifiers(Modifier.PRIVATE, Modifier.FINAL, Modifier.STATIC)
+                .addParameter(String[].class, "fields")
+                .beginControlFlow("for (int i = 0; i < fields.length; i += 4)")
+                .addStatement("final String moduleName = fields[i + 1]")
+                .addStatement("$T classFieldList = buildConfigDelegate.flavorClassFields.get(moduleName)",
+                        classFieldListClass)
+                .beginControlFlow("if (null == classFieldList)")
+                .addStatement("classFieldList = new $T()", classFieldArrayListClass)
+                .addStatement("buildConfigDelegate.flavorClassFields.put(moduleName, classFieldList)")
+                .endControlFlow()
+                .addStatement("final ClassField classField = new ClassField(fields[i], moduleName, fields[i + 2], $S, "
+                        + "fields[i + 3])", BuildConfigConstants.TYPE_STRING)
+                .addStatement("classFieldList.add(classField)")
+                .addStatement("putClassField(moduleName, classField)")
+                .endControlFlow()
+                .build();
+    }
+
+    /**
+     * Add the field to the table of its flavor. The first field wins, the same as the list walk did.
+     */
+    private MethodSpec putClassField() {
+        TypeName string = ClassName.get(String.class);
+        TypeName classFieldType = ClassName.bestGuess("ClassField");
+        TypeName fieldTableType = getFieldTableType();
+        TypeName nameClassFieldMap = ParameterizedTypeName.get(ClassName.get(Map.class), string, classFieldType);
+        TypeName nameClassFieldHashMap = ParameterizedTypeName
+                .get(ClassName.get(HashMap.class), string, classFieldType);
+        TypeName fieldTableHashMapType = ParameterizedTypeName.get(ClassName.get(HashMap.class), string,
+                nameClassFieldMap);
+        return MethodSpec.methodBuilder("putClassField")
                 .addParameter(String.class, "module")
-                .addParameter(String.class, "flavor")
-                .returns(classFieldType)
+                .addParameter(classFieldType, "classField")
                 .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PRIVATE)
-                .addStatement("$T classFieldList = buildConfigDelegate.flavorClassFields.get(module)",
-                        classFieldListClass)
-                .beginControlFlow("if (null != classFieldList)")
-                .beginControlFlow("for ($T classField : classFieldList)", classFieldType)
-                .beginControlFlow(
-                        "if (flavor.equals(classField.flavor) && key.equals(classField.name))")
-                .addStatement("return classField")
+                .addStatement("$T fieldTable = buildConfigDelegate.flavorFieldTables.get(classField.flavor)",
+                        fieldTableType)
+                .beginControlFlow("if (null == fieldTable)")
+                .addStatement("fieldTable = new $T()", fieldTableHashMapType)
+                .addStatement("buildConfigDelegate.flavorFieldTables.put(classField.flavor, fieldTable)")
                 .endControlFlow()
+                .addStatement("$T moduleFields = fieldTable.get(module)", nameClassFieldMap)
+                .beginControlFlow("if (null == moduleFields)")
+                .addStatement("moduleFields = new $T()", nameClassFieldHashMap)
+                .addStatement("fieldTable.put(module, moduleFields)")
                 .endControlFlow()
+                .beginControlFlow("if (!moduleFields.containsKey(classField.name))")
+                .addStatement("moduleFields.put(classField.name, classField)")
                 .endControlFlow()
-                .addStatement("return null")
+                .build();
+    }
+
+    private MethodSpec updateCurrentFieldTable() {
+        TypeName fieldTableType = getFieldTableType();
+        return MethodSpec.methodBuilder("updateCurrentFieldTable")
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PRIVATE)
+                .addStatement("final $T fieldTable = buildConfigDelegate.flavorFieldTables"
+                        + ".get(buildConfigDelegate.currentFlavor)", fieldTableType)
+                .beginControlFlow("if (null != fieldTable)")
+                .addStatement("buildConfigDelegate.currentFieldTable = fieldTable")
+                .nextControlFlow("else")
+                .addStatement("buildConfigDelegate.currentFieldTable = $T.emptyMap()", Collections.class)
+                .endControlFlow()
+                .build();
+    }
+
+    /**
+     * Two hash lookups in the table of the current flavor, no matter how many flavors and fields there are.
+     */
+    private MethodSpec findClassField() {
+        TypeName string = ClassName.get(String.class);
+        TypeName classFieldType = ClassName.bestGuess("ClassField");
+        TypeName nameClassFieldMap = ParameterizedTypeName.get(ClassName.get(Map.class), string, classFieldType);
+        return MethodSpec.methodBuilder("findClassField")
+                .addParameter(String.class, "key")
+                .addParameter(String.class, "module")
+                .returns(classFieldType)
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PRIVATE)
+                .addStatement("final $T moduleFields = buildConfigDelegate.currentFieldTable.get(module)",
+                        nameClassFieldMap)
+                .addStatement("return null != moduleFields ? moduleFields.get(key) : null")
                 .build();
     }
 
@@ -217,8 +483,17 @@ public class BuildConfigDelegateGenerator {
     private MethodSpec setCurrentFlavor() {
         return MethodSpec.methodBuilder("setCurrentFlavor")
                 .addParameter(String.class, "flavor")
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                .addStatement("buildConfigDelegate.currentFlavor = flavor")
+                .addStatement("updateCurrentFieldTable()")
+                .addStatement("generation++").build();
+    }
+
+    private MethodSpec setLookupListener() {
+        return MethodSpec.methodBuilder("setLookupListener")
+                .addParameter(ClassName.bestGuess("LookupListener"), "listener")
                 .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
-                .addStatement("buildConfigDelegate.currentFlavor = flavor").build();
+                .addStatement("lookupListener = listener").build();
     }
 
     private MethodSpec getString() {
@@ -229,43 +504,149 @@ public class BuildConfigDelegateGenerator {
                 .addParameter(String.class, "defaultValue")
                 .returns(String.class)
                 .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
-                .addStatement("final $T classField = findClassField(key, module, buildConfigDelegate.currentFlavor)",
+                .addStatement("final $T classField = findClassField(key, module)",
                         classFieldType)
-                .beginControlFlow("if (null != classField)")
-                .addStatement("final $T matcher = BUILD_CONFIG_VALUE_PATTERN.matcher(classField.value)", Matcher.class)
-                .beginControlFlow("if (matcher.find())")
-                .addStatement("String value = matcher.group(2)")
-                .addStatement("$T.i(\"BuildConfigDelegate\", \"Key:\" + key + \" value:\" + value)",
-                        ClassName.bestGuess("android.util.Log"))
-                .addStatement("return value")
+                .addStatement("final String value = null != classField ? classField.value : defaultValue")
+                .beginControlFlow("if (LOOKUP_TRACING)")
+                .addStatement("final LookupListener listener = lookupListener")
+                .beginControlFlow("if (null != listener)")
+                .addStatement("listener.onLookup(module, key, value, null != classField)")
                 .endControlFlow()
                 .endControlFlow()
-                .addStatement("$T.i(\"BuildConfigDelegate\", \"Key:\" + key + \" defaultValue:\" + defaultValue)",
-                        ClassName.bestGuess("android.util.Log"))
-                .addStatement("return defaultValue").build();
+                .addStatement("return value").build();
 
     }
 
     public File generateBuildConfig(String packageName, String flavorName, String className, File outputDir)
             throws IOException {
-        TypeSpec classFieldTypeSpec = getClassFieldTypeSpec();
-        TypeSpec buildConfigDelegateTypeSpec = TypeSpec.classBuilder(className)
-                .addJavadoc(CodeBlock.of("Automatically generated file. DO NOT MODIFY"))
-                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
-                .addFields(getBuildConfigDelegateFields(packageName, flavorName, className))
-                .addType(classFieldTypeSpec)
-                .addMethod(createInitialModuleBuildConfig())
-                .addMethod(getFlavorClassFields())
-                .addMethod(geCurrentFlavor())
-                .addMethod(getPackageFlavor())
-                .addMethod(getFlavorSet())
-                .addMethod(setCurrentFlavor())
-                .addMethod(getString())
-                .addMethod(findClassField())
-                .build();
+        return generateBuildConfig(packageName, flavorName, className, outputDir, false);
+    }
+
+    /**
+     * @param passThrough The variant does not delegate the BuildConfig fields, e.g., release.
+     * The transform removes all the delegate calls, so we only generate a stub that keeps the public methods.
+     */
+    public File generateBuildConfig(String packageName, String flavorName, String className, File outputDir,
+            boolean passThrough) throws IOException {
+        return generateBuildConfig(packageName, flavorName, className, outputDir, passThrough, false);
+    }
+
+    /**
+     * @param lookupTracing Call the LookupListener on each getString call. Without it the tracing code is compiled out.
+     */
+    public File generateBuildConfig(String packageName, String flavorName, String className, File outputDir,
+            boolean passThrough, boolean lookupTracing) throws IOException {
+        return generateBuildConfig(packageName, flavorName, className, outputDir, passThrough, lookupTracing, null);
+    }
+
+    /**
+     * @param embeddedFields Module name -> variant name -> fields. If it is not null, the String fields are compiled
+     * into the holder classes of the delegate and initialModuleBuildConfig does nothing, so there is no asset to read.
+     */
+    public File generateBuildConfig(String packageName, String flavorName, String className, File outputDir,
+            boolean passThrough, boolean lookupTracing,
+            Map<String, Map<String, List<BuildConfigClassField>>> embeddedFields) throws IOException {
+        TypeSpec buildConfigDelegateTypeSpec;
+        if (passThrough) {
+            buildConfigDelegateTypeSpec = getPassThroughTypeSpec(flavorName, className);
+        } else {
+            TypeSpec classFieldTypeSpec = getClassFieldTypeSpec();
+            TypeSpec.Builder buildConfigDelegateBuilder = TypeSpec.classBuilder(className)
+                    .addJavadoc(CodeBlock.of("Automatically generated file. DO NOT MODIFY"))
+                    .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                    .addField(getLookupTracingFieldSpec(lookupTracing))
+                    .addFields(getBuildConfigDelegateFields(packageName, flavorName, className))
+                    .addType(classFieldTypeSpec)
+                    .addType(getSlotTypeSpec())
+                    .addType(getLookupListenerTypeSpec());
+            if (null == embeddedFields) {
+                buildConfigDelegateBuilder
+                        .addMethod(createInitialModuleBuildConfig())
+                        .addMethod(readBuildConfig());
+            } else {
+                addEmbeddedFields(buildConfigDelegateBuilder, embeddedFields);
+            }
+            buildConfigDelegateTypeSpec = buildConfigDelegateBuilder
+                    .addMethod(getFlavorClassFields())
+                    .addMethod(geCurrentFlavor())
+                    .addMethod(getPackageFlavor())
+                    .addMethod(getFlavorSet())
+                    .addMethod(setCurrentFlavor())
+                    .addMethod(setLookupListener())
+                    .addMethod(getString())
+                    .addMethod(findClassField())
+                    .addMethod(putClassField())
+                    .addMethod(updateCurrentFieldTable())
+                    .build();
+        }
         JavaFile javaFile = JavaFile.builder(packageName, buildConfigDelegateTypeSpec).build();
         File sourceFile = new File(outputDir, className + ".java");
         javaFile.writeTo(outputDir);
         return sourceFile;
     }
+
+    /**
+     * The stub of the pass-through variants. It keeps the same public methods, so the app code still compiles,
+     * but it never reads the assets and there is only one flavor.
+     */
+    private TypeSpec getPassThroughTypeSpec(String flavorName, String className) {
+        TypeName string = ClassName.get(String.class);
+        TypeName classFieldType = ClassName.bestGuess("ClassField");
+        TypeName classFieldListClass = ParameterizedTypeName.get(ClassName.get(List.class), classFieldType);
+        TypeName stringClassFieldListMap = ParameterizedTypeName
+                .get(ClassName.get(Map.class), string, classFieldListClass);
+        TypeName stringSetType = ParameterizedTypeName.get(Set.class, String.class);
+        MethodSpec initialModuleBuildConfig = MethodSpec.methodBuilder("initialModuleBuildConfig")
+                .addException(ClassName.bestGuess("java.io.IOException"))
+                .addException(ClassName.bestGuess("org.json.JSONException"))
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL, Modifier.STATIC)
+                .addParameter(ClassName.bestGuess("android.content.Context"), "context")
+                .build();
+        MethodSpec getFlavorClassFields = MethodSpec.methodBuilder("getFlavorClassFields")
+                .returns(stringClassFieldListMap)
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
+                .addStatement("return $T.emptyMap()", Collections.class).build();
+        MethodSpec getCurrentFlavor = MethodSpec.methodBuilder("getCurrentFlavor")
+                .returns(String.class)
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
+                .addStatement("return $S", flavorName).build();
+        MethodSpec getPackageFlavor = MethodSpec.methodBuilder("getPackageFlavor")
+                .returns(String.class)
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
+                .addStatement("return $S", flavorName).build();
+        MethodSpec getFlavorSet = MethodSpec.methodBuilder("getFlavorSet")
+                .returns(stringSetType)
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
+                .addStatement("return $T.emptySet()", Collections.class).build();
+        MethodSpec setCurrentFlavor = MethodSpec.methodBuilder("setCurrentFlavor")
+                .addParameter(String.class, "flavor")
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
+                .build();
+        MethodSpec setLookupListener = MethodSpec.methodBuilder("setLookupListener")
+                .addParameter(ClassName.bestGuess("LookupListener"), "listener")
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
+                .build();
+        MethodSpec getString = MethodSpec.methodBuilder("getString")
+                .addParameter(String.class, "module")
+                .addParameter(String.class, "key")
+                .addParameter(String.class, "defaultValue")
+                .returns(String.class)
+                .addModifiers(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC)
+                .addStatement("return defaultValue").build();
+        return TypeSpec.classBuilder(className)
+                .addJavadoc(CodeBlock.of("Automatically generated file. DO NOT MODIFY"))
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .addField(getLookupTracingFieldSpec(false))
+                .addType(getClassFieldTypeSpec())
+                .addType(getLookupListenerTypeSpec())
+                .addMethod(initialModuleBuildConfig)
+                .addMethod(getFlavorClassFields)
+                .addMethod(getCurrentFlavor)
+                .addMethod(getPackageFlavor)
+                .addMethod(getFlavorSet)
+                .addMethod(setCurrentFlavor)
+                .addMethod(setLookupListener)
+                .addMethod(getString)
+                .build();
+    }
 }
@@ -1,19 +1,11 @@
 package com.android.plugin.buildconfig.task
 
-import com.android.build.gradle.AppExtension
-import com.android.build.gradle.AppPlugin
-import com.android.build.gradle.LibraryExtension
-import com.android.build.gradle.LibraryPlugin
-import com.android.build.gradle.api.BaseVariant
-import com.android.builder.model.ClassField
 import com.android.plugin.buildconfig.BuildConfigConstants
-import com.google.gson.GsonBuilder
-import com.google.gson.TypeAdapter
-import com.google.gson.stream.JsonReader
-import com.google.gson.stream.JsonWriter
+import com.android.plugin.buildconfig.BuildConfigFieldService
 import org.gradle.api.DefaultTask
 import org.gradle.api.provider.Property
 import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Internal
 import org.gradle.api.tasks.TaskAction
 import java.io.File
 
@@ -24,64 +16,30 @@ abstract class CollectBuildConfigFieldTask : DefaultTask() {
     @get:Input
     abstract val buildConfigFolderProvider: Property<File>
 
+    /**
+     * The fields are embedded in the generated BuildConfigDelegate, so no asset is written.
+     */
+    @get:Input
+    abstract val embedFieldsProvider: Property<Boolean>
+
+    @get:Internal
+    abstract val fieldServiceProvider: Property<BuildConfigFieldService>
+
     @TaskAction
     fun generateBuildConfigGlobal() {
-        val buildConfigFieldFlavors = mutableMapOf<String, List<ClassField>>()
-        if (project.plugins.hasPlugin(AppPlugin::class.java)) {
-            val appExtension = project.extensions.findByType(AppExtension::class.java) ?: return
-            val applicationVariants = appExtension.applicationVariants
-            applicationVariants.forEach { applicationVariant ->
-                val buildConfigFieldItems = getBuildConfigFieldItems(applicationVariant)
-                if (null != buildConfigFieldItems) {
-                    buildConfigFieldFlavors[applicationVariant.name] = buildConfigFieldItems
-                }
-            }
-        } else if (project.plugins.hasPlugin(LibraryPlugin::class.java)) {
-            val libraryExtension = project.extensions.findByType(LibraryExtension::class.java) ?: return
-            libraryExtension.libraryVariants.all { libraryVariant ->
-                val buildConfigFieldItems = getBuildConfigFieldItems(libraryVariant)
-                if (null != buildConfigFieldItems) {
-                    buildConfigFieldFlavors[libraryVariant.name] = buildConfigFieldItems
-                }
-            }
-        }
+        //All the variants' fields of this project. Read from the shared field table.
+        val buildConfigFieldFlavors = fieldServiceProvider.get().getModuleFields(project.rootProject, project.name)
         if (buildConfigFolderProvider.isPresent && variantFlavorNameProvider.isPresent) {
             val buildConfigFolder = buildConfigFolderProvider.get()
             println("Project:${project.name} variantName:${variantFlavorNameProvider.get()} BuildConfigDir:" + buildConfigFolder.absolutePath)
-            if (buildConfigFieldFlavors.isNotEmpty()) {
-                val clazz = Class.forName(BuildConfigConstants.CLASS_FIELD_IMPL)
-                val gson =
-                    GsonBuilder().registerTypeAdapter(clazz, object : TypeAdapter<ClassField>() {
-                        override fun write(out: JsonWriter, value: ClassField) {
-                            out.beginObject()
-                            out.name("name")
-                            out.value(value.name)
-                            out.name("type")
-                            out.value(value.type)
-                            out.name("value")
-                            out.value(value.value.trim('\"'))
-                            out.endObject()
-                        }
-
-                        override fun read(`in`: JsonReader?): ClassField? {
-                            return null
-                        }
-                    }).create()
-                val jsonString = gson.toJson(buildConfigFieldFlavors)
-                val file = File(buildConfigFolder, project.name + ".json")
-                file.writeText(jsonString)
-            }
-        }
-    }
-
-    private fun getBuildConfigFieldItems(variant: BaseVariant): List<ClassField>? {
-        if (variant.generateBuildConfigProvider.isPresent) {
-            val generateBuildConfig = variant.generateBuildConfigProvider.get()
-            if (generateBuildConfig.items.isPresent) {
-                val buildConfigItems = generateBuildConfig.items.get()
-                return buildConfigItems.filterIsInstance<ClassField>()
+            //The json asset of the previous versions.
+            File(buildConfigFolder, project.name + ".json").delete()
+            val file = File(buildConfigFolder, project.name + BuildConfigConstants.ASSET_FILE_EXTENSION)
+            if (embedFieldsProvider.getOrElse(false)) {
+                file.delete()
+            } else if (buildConfigFieldFlavors.isNotEmpty()) {
+                BuildConfigAssetWriter.write(project.name, buildConfigFieldFlavors, file)
             }
         }
-        return null
     }
-}
\ No newline at end of file
+}
@@ -2,37 +2,37 @@ package com.android.plugin.buildconfig.transform
 
 import com.android.build.api.transform.*
 import com.android.build.api.transform.QualifiedContent.DefaultContentType
-import com.android.build.gradle.AppExtension
-import com.android.build.gradle.AppPlugin
-import com.android.build.gradle.LibraryExtension
-import com.android.build.gradle.LibraryPlugin
-import com.android.builder.model.ClassField
 import com.google.common.collect.ImmutableSet
-import com.android.plugin.buildconfig.BuildConfigClassField
 import com.android.plugin.buildconfig.BuildConfigConstants
+import com.android.plugin.buildconfig.BuildConfigFieldService
+import com.android.plugin.buildconfig.LazyStaticFieldIndex
+import com.android.plugin.buildconfig.PassThroughVariants
+import com.android.plugin.buildconfig.engine.LazyStaticFieldScanner
+import com.android.plugin.buildconfig.engine.RewriteEngine
+import com.android.plugin.buildconfig.engine.RewriteOptions
+import com.android.plugin.buildconfig.engine.RewriteReport
+import com.android.plugin.buildconfig.engine.RewriteRequest
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
 import com.android.plugin.buildconfig.visitor.StringReplaceClassInvitor
 import org.apache.commons.io.FileUtils
 import org.gradle.api.Project
-import org.objectweb.asm.ClassReader
-import org.objectweb.asm.ClassWriter
+import org.gradle.api.provider.Provider
 import java.io.File
-import java.io.IOException
-import java.io.UncheckedIOException
-import java.util.function.Consumer
-import java.util.jar.JarEntry
-import java.util.jar.JarFile
-import java.util.jar.JarOutputStream
-import java.util.zip.ZipEntry
 
 /**
  * A Transform that processes intermediary build artifacts to proxy BuildConfig field.
  *
  * The scope of the Transform: QualifiedContent.Scope.PROJECT, QualifiedContent.Scope.SUB_PROJECTS
  * We don't need to the external libraries.
+ * The BuildConfig fields are read from the shared [BuildConfigFieldService].
+ * This class only adapts the transform inputs to the [RewriteEngine], which does the actual work.
  *
  * @see StringReplaceClassInvitor
  */
-open class BuildConfigDelegateTransform(private val project: Project) : Transform() {
+open class BuildConfigDelegateTransform(
+    private val project: Project,
+    private val fieldServiceProvider: Provider<BuildConfigFieldService>
+) : Transform() {
 
     override fun getName(): String {
         return BuildConfigConstants.DELEGATE_CLASS_NAME
@@ -47,78 +47,93 @@ open class BuildConfigDelegateTransform(private val project: Project) : Transfor
     }
 
     override fun isIncremental(): Boolean {
-        return false
+        return true
     }
 
     override fun transform(transformInvocation: TransformInvocation) {
         super.transform(transformInvocation)
-        if (transformInvocation.isIncremental) {
-            throw UnsupportedOperationException("Unsupported incremental build!")
-        }
+        val variantName = transformInvocation.context.variantName
         //1. Collect all the BuildConfig fields
-        val classFieldList = collectBuildConfigClassFields(transformInvocation)
-        //2. Transform all the source file.
-        transformClassFiles(transformInvocation, classFieldList)
-        //3. Transform all the internal libraries.(Without external libraries)
-        transformJarFiles(transformInvocation, classFieldList)
+        val fieldIndex = fieldServiceProvider.get().getFieldIndex(project.rootProject, variantName)
+        val options = createRewriteOptions(variantName)
+        //The reads of a lazy field may come from any input, so all the inputs are scanned, even the unchanged ones.
+        val lazyFieldIndex = if (options.lazyStaticFields && !options.passThrough) {
+            LazyStaticFieldScanner(fieldIndex).scan(transformInvocation.inputs.flatMap { input ->
+                input.directoryInputs.map { it.file } +
+                        input.jarInputs.filter { Status.REMOVED != it.status }.map { it.file }
+            })
+        } else LazyStaticFieldIndex.EMPTY
+        //If the field table, the lazy fields or the options changed since the last run,
+        //we fall back to a full transform.
+        val fingerprint = TransformFingerprint(
+            File(transformInvocation.context.temporaryDir, FINGERPRINT_FILE),
+            fieldIndex.fingerprint + "#" + lazyFieldIndex.fingerprint,
+            options
+        )
+        val incremental = fingerprint.isIncremental(transformInvocation.isIncremental)
+        if (!incremental) {
+            transformInvocation.outputProvider.deleteAll()
+        }
+        val report = RewriteReport(variantName, incremental, options.workerCount)
+        //2. Transform all the source files and the internal libraries.(Without external libraries)
+        val requests = createDirectoryRequests(transformInvocation, incremental) +
+                createJarRequests(transformInvocation, incremental)
+        RewriteEngine(fieldIndex, options, lazyFieldIndex).rewrite(requests, report)
+        //3. Write the report: build/reports/buildconfig/<variant>.json
+        val reportFile = File(project.buildDir, "reports/buildconfig/$variantName.json")
+        report.write(reportFile)
+        project.logger.info("BuildConfigDelegate report: ${reportFile.absolutePath}")
+        fingerprint.write()
     }
 
     /**
-     * Collect all the BuildConfig fields in all the modules.
+     * The options are configured by the project properties.
+     * 1. `buildConfigDelegate.workers` The number of threads, all the available processors by default.
+     * 2. `buildConfigDelegate.cacheDir` The folder of the persistent cache, `<root build dir>/buildconfig-cache` by default.
+     * 3. `buildConfigDelegate.cacheSize` The size of the cache in megabytes, set it to 0 to disable the cache.
+     * 4. `buildConfigDelegate.concatStrategy` How the rewritten strings are put together, [ConcatStrategy.AUTO] by default.
+     * 5. `buildConfigDelegate.callSiteCache` Cache the value of each rewritten site, true by default.
+     * 6. `buildConfigDelegate.loopSiteCache` Without the call site cache, still cache the sites in loops, true by default.
+     * 7. `buildConfigDelegate.passThrough` The build types or variants that unwrap the markers instead.
+     * 8. `buildConfigDelegate.lazyStaticFields` Initialize the static fields on the first read, false by default.
+     * Every build scans all the inputs for the lazy fields, so the reads from the other classes are redirected too.
      */
-    private fun collectBuildConfigClassFields(transformInvocation: TransformInvocation): List<BuildConfigClassField> {
-        val variantName = transformInvocation.context.variantName
-        val classFieldSet = mutableSetOf<BuildConfigClassField>()
-        project.rootProject.allprojects { subProject ->
-            if (subProject.plugins.hasPlugin(AppPlugin::class.java)) {
-                val appExtension = subProject.extensions.findByType(AppExtension::class.java)
-                appExtension?.applicationVariants?.forEach { applicationVariant ->
-                    if (variantName == applicationVariant.name && null != applicationVariant.generateBuildConfigProvider) {
-                        val generateBuildConfig = applicationVariant.generateBuildConfigProvider.get()
-                        if (generateBuildConfig.items.isPresent) {
-                            val classFieldList =
-                                generateBuildConfig.items.get().filterIsInstance<ClassField>().map { classField ->
-                                    BuildConfigClassField(
-                                        subProject.name,
-                                        classField.name,
-                                        classField.type,
-                                        classField.value.trim('\"')
-                                    )
-                                }
-                            classFieldSet.addAll(classFieldList)
-                        }
-                    }
-                }
-            } else if (subProject.plugins.hasPlugin(LibraryPlugin::class.java)) {
-                val libraryExtension = subProject.extensions.findByType(LibraryExtension::class.java)
-                libraryExtension?.libraryVariants?.all { libraryVariant ->
-                    if (variantName == libraryVariant.name && null != libraryVariant.generateBuildConfigProvider) {
-                        val generateBuildConfig = libraryVariant.generateBuildConfigProvider.get()
-                        if (generateBuildConfig.items.isPresent) {
-                            val classFieldList =
-                                generateBuildConfig.items.get().filterIsInstance<ClassField>().map { classField ->
-                                    BuildConfigClassField(
-                                        subProject.name,
-                                        classField.name,
-                                        classField.type,
-                                        classField.value.trim('\"')
-                                    )
-                                }
-                            classFieldSet.addAll(classFieldList)
-                        }
-                    }
-                }
-            }
+    private fun createRewriteOptions(variantName: String): RewriteOptions {
+        val workers = project.findProperty(BuildConfigConstants.PROPERTY_WORKERS)?.toString()?.toIntOrNull()
+        val workerCount = if (null != workers && 0 < workers) workers else Runtime.getRuntime().availableProcessors()
+        val cacheSize = project.findProperty(BuildConfigConstants.PROPERTY_CACHE_SIZE)?.toString()?.toLongOrNull()
+            ?: DEFAULT_CACHE_SIZE_MB
+        val cacheDir = if (cacheSize <= 0) null else {
+            project.findProperty(BuildConfigConstants.PROPERTY_CACHE_DIR)?.let { project.file(it) }
+                ?: File(project.rootProject.buildDir, "buildconfig-cache")
         }
-        return classFieldSet.toList()
+        val concatStrategy = project.findProperty(BuildConfigConstants.PROPERTY_CONCAT_STRATEGY)?.let { strategy ->
+            ConcatStrategy.valueOf(strategy.toString().uppercase())
+        } ?: ConcatStrategy.AUTO
+        val callSiteCache = project.findProperty(BuildConfigConstants.PROPERTY_CALL_SITE_CACHE)?.toString()?.toBoolean()
+            ?: true
+        val loopSiteCache = project.findProperty(BuildConfigConstants.PROPERTY_LOOP_SITE_CACHE)?.toString()?.toBoolean()
+            ?: true
+        val lazyStaticFields =
+            project.findProperty(BuildConfigConstants.PROPERTY_LAZY_STATIC_FIELDS)?.toString()?.toBoolean() ?: false
+        return RewriteOptions(
+            workerCount = workerCount,
+            cacheDir = cacheDir,
+            cacheSize = cacheSize * 1024 * 1024,
+            concatStrategy = concatStrategy,
+            callSiteCache = callSiteCache,
+            loopSiteCache = loopSiteCache,
+            passThrough = PassThroughVariants.isPassThrough(project, variantName),
+            lazyStaticFields = lazyStaticFields
+        )
     }
 
-    private fun transformJarFiles(
+    private fun createJarRequests(
         transformInvocation: TransformInvocation,
-        classFieldList: List<BuildConfigClassField>
-    ) {
+        incremental: Boolean
+    ): List<RewriteRequest> {
+        val requests = mutableListOf<RewriteRequest>()
         val outputProvider = transformInvocation.outputProvider
-        //Copy all the jar and classes to the where they need to...
         for (input in transformInvocation.inputs) {
             input.jarInputs.forEach { jarInput: JarInput ->
                 val dest = outputProvider.getContentLocation(
@@ -127,101 +142,54 @@ open class BuildConfigDelegateTransform(private val project: Project) : Transfor
                     jarInput.scopes,
                     Format.JAR
                 )
-                if (dest.exists()) {
-                    dest.delete()
-                }
-                try {
-                    processAndTransformJar(jarInput.file, classFieldList, dest)
-                } catch (e: IOException) {
-                    throw UncheckedIOException(e)
+                if (incremental) {
+                    when (jarInput.status) {
+                        Status.NOTCHANGED -> return@forEach
+                        Status.REMOVED -> {
+                            FileUtils.deleteQuietly(dest)
+                            return@forEach
+                        }
+                        else -> Unit
+                    }
                 }
+                requests += RewriteRequest.Jar(jarInput.name, jarInput.file, dest)
             }
         }
+        return requests
     }
 
-    private fun transformClassFiles(
+    private fun createDirectoryRequests(
         transformInvocation: TransformInvocation,
-        classFieldList: List<BuildConfigClassField>
-    ) {
+        incremental: Boolean
+    ): List<RewriteRequest> {
+        val requests = mutableListOf<RewriteRequest>()
         val outputProvider = transformInvocation.outputProvider
         for (input in transformInvocation.inputs) {
-            input.directoryInputs.forEach(Consumer { dir: DirectoryInput ->
-                if (dir.file.isDirectory) {
-                    dir.file.walk().forEach { classFile ->
-                        val fileName = classFile.name
-                        if (fileName.endsWith(".class") &&
-                            !fileName.startsWith("R$") &&
-                            fileName != BuildConfigConstants.DELEGATE_CLASS_NAME + ".class" &&
-                            "R.class" != fileName &&
-                            "BuildConfig.class" != fileName
-                        ) {
-                            try {
-                                val bytes = visitClass(classFile.readBytes(), classFieldList)
-                                classFile.writeBytes(bytes)
-                            } catch (e: Exception) {
-                                System.err.println("Process file:${classFile.name} failed.")
-                            }
+            input.directoryInputs.forEach { dir: DirectoryInput ->
+                val destFolder = outputProvider.getContentLocation(
+                    dir.name,
+                    dir.contentTypes,
+                    dir.scopes,
+                    Format.DIRECTORY
+                )
+                val changedFiles = if (incremental) {
+                    dir.changedFiles.mapNotNull { (file, status) ->
+                        when (status) {
+                            Status.ADDED -> file to RewriteRequest.FileChange.ADDED
+                            Status.CHANGED -> file to RewriteRequest.FileChange.CHANGED
+                            Status.REMOVED -> file to RewriteRequest.FileChange.REMOVED
+                            else -> null
                         }
-                    }
-                }
-                try {
-                    val destFolder = outputProvider.getContentLocation(
-                        dir.name,
-                        dir.contentTypes,
-                        dir.scopes,
-                        Format.DIRECTORY
-                    )
-                    FileUtils.copyDirectory(dir.file, destFolder)
-                } catch (e: IOException) {
-                    throw UncheckedIOException(e)
-                }
-            })
-        }
-    }
-
-
-    @Throws(IOException::class)
-    private fun processAndTransformJar(
-        sourceFile: File,
-        classFieldList: List<BuildConfigClassField>, destFile: File
-    ) {
-        if (null == sourceFile || !sourceFile.exists()) return
-        val jarFile = JarFile(sourceFile)
-        val newDestFile = File(destFile.parent, destFile.name.hashCode().toString() + destFile.name)
-        val jarOutputStream = JarOutputStream(newDestFile.outputStream())
-
-        val enumeration = jarFile.entries()
-        while (enumeration.hasMoreElements()) {
-            val jarEntry = enumeration.nextElement() as JarEntry
-            val jarEntryName = jarEntry.name
-            val inputStream = jarFile.getInputStream(jarEntry)
-            jarOutputStream.putNextEntry(ZipEntry(jarEntry.name))
-            var bytes = inputStream.readBytes()
-            if (jarEntryName.endsWith(".class") &&
-                !jarEntryName.contains("R$") &&
-                !jarEntryName.endsWith("R.class") &&
-                !jarEntryName.endsWith("BuildConfig.class")
-            ) {
-                bytes = visitClass(bytes, classFieldList)
+                    }.toMap()
+                } else null
+                requests += RewriteRequest.Directory(dir.name, dir.file, destFolder, changedFiles)
             }
-            jarOutputStream.write(bytes)
-            jarOutputStream.closeEntry()
         }
-        jarOutputStream.close()
-        jarFile.close()
-        //Delete the old file and rename the new file.
-        destFile.delete()
-        newDestFile.renameTo(destFile)
+        return requests
     }
 
-    private fun visitClass(
-        byteArray: ByteArray,
-        classFieldList: List<BuildConfigClassField>
-    ): ByteArray {
-        val classReader = ClassReader(byteArray)
-        val classWriter = ClassWriter(classReader, ClassWriter.COMPUTE_MAXS)
-        val classVisitor = StringReplaceClassInvitor(classFieldList, classWriter)
-        classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES)
-        return classWriter.toByteArray()
+    companion object {
+        private const val FINGERPRINT_FILE = "transform.fingerprint"
+        private const val DEFAULT_CACHE_SIZE_MB = 256L
     }
-}
\ No newline at end of file
+}
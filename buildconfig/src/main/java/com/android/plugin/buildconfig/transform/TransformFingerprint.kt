@@ -0,0 +1,35 @@
+package com.android.plugin.buildconfig.transform
+
+import com.android.plugin.buildconfig.BuildConfigConstants
+import com.android.plugin.buildconfig.engine.RewriteOptions
+import java.io.File
+
+/**
+ * The rewritten classes depend on more than their own bytes: the field table, the lazy static fields of the other
+ * classes and the rewrite options.
+ * If any of them changed since the last run, the outputs of the unchanged inputs are stale as well,
+ * so the transform falls back to a full run.
+ *
+ * @param file The file that keeps the fingerprint of the last run.
+ * @param fieldTableFingerprint The fingerprint of the BuildConfig fields and of the lazy static fields.
+ */
+class TransformFingerprint(
+    private val file: File,
+    fieldTableFingerprint: String,
+    options: RewriteOptions
+) {
+    val value: String =
+        BuildConfigConstants.REWRITE_VERSION.toString() + "#" + fieldTableFingerprint + "#" + options.outputFingerprint()
+
+    /**
+     * @param incremental If the transform invocation itself is incremental.
+     */
+    fun isIncremental(incremental: Boolean): Boolean {
+        return incremental && file.exists() && file.readText() == value
+    }
+
+    fun write() {
+        file.parentFile.mkdirs()
+        file.writeText(value)
+    }
+}
@@ -0,0 +1,222 @@
+package com.android.plugin.buildconfig.visitor;
+
+import com.android.plugin.buildconfig.BuildConfigClassField;
+import com.android.plugin.buildconfig.BuildConfigConstants;
+
+/**
+ * A hand-written scanner for the BuildConfig markers: `BuildConfig#<module name>#value`
+ * It finds the same markers as {@link BuildConfigConstants#BUILD_CONFIG_VALUE_PATTERN} without any regex.
+ * 1. A single indexOf for the marker prefix.
+ * 2. The module and the value are parsed in one pass, only the spans are kept.
+ * It also finds the compact markers, a field id between two {@link BuildConfigConstants#COMPACT_MARKER_DELIMITER}.
+ * A compact marker has no module and value spans, the field is resolved by {@link #fieldId()}.
+ * The scanner does not allocate anything while scanning, so one instance can be reset for every constant string.
+ * It keeps the state of the current string, so it must not be shared between threads.
+ * <pre>
+ *     scanner.reset(value);
+ *     while (scanner.find()) {
+ *         value.substring(scanner.start(), scanner.end());
+ *     }
+ * </pre>
+ */
+public final class BuildConfigMarkerScanner {
+    private static final String MARKER_PREFIX = BuildConfigConstants.BUILD_CONFIG_MARKER_PREFIX;
+    private static final char MODULE_SEPARATOR = '#';
+    private static final char MARKER_END = '`';
+    private static final char COMPACT_DELIMITER = BuildConfigConstants.COMPACT_MARKER_DELIMITER;
+    /**
+     * An id has at most 9 digits, so it always fits into an int.
+     */
+    private static final int MAX_ID_DIGITS = 9;
+    private String text;
+    private int from;
+    /**
+     * The next index of each kind of marker, they are only searched again once the scanner passed them.
+     */
+    private int nextPrefixIndex;
+    private int nextCompactIndex;
+    private int fieldId;
+    private int start;
+    private int end;
+    private int moduleStart;
+    private int moduleEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    public BuildConfigMarkerScanner reset(String text) {
+        this.text = text;
+        this.from = 0;
+        this.nextPrefixIndex = -1;
+        this.nextCompactIndex = -1;
+        this.start = -1;
+        this.end = -1;
+        return this;
+    }
+
+    /**
+     * Check if the text may contain a marker of either kind. It is cheaper than {@link #find()}, but may be wrong.
+     */
+    public static boolean mayContainMarker(String text) {
+        return 0 <= text.indexOf(COMPACT_DELIMITER) || text.contains(MARKER_PREFIX);
+    }
+
+    /**
+     * Find the next marker after the previous one.
+     *
+     * @return true if a marker was found, the spans are available until the next call.
+     */
+    public boolean find() {
+        final String text = this.text;
+        if (null == text) {
+            return false;
+        }
+        final int length = text.length();
+        while (from < length) {
+            if (nextPrefixIndex < from) {
+                nextPrefixIndex = indexOf(text.indexOf(MARKER_PREFIX, from), length);
+            }
+            if (nextCompactIndex < from) {
+                nextCompactIndex = indexOf(text.indexOf(COMPACT_DELIMITER, from), length);
+            }
+            int markerIndex = Math.min(nextPrefixIndex, nextCompactIndex);
+            if (markerIndex == length) {
+                break;
+            }
+            boolean found = markerIndex == nextCompactIndex
+                    ? parseCompactMarker(text, markerIndex, length) : parseMarker(text, markerIndex, length);
+            if (found) {
+                from = end;
+                return true;
+            }
+            //Not a marker, the next one may start inside this one.
+            from = markerIndex + 1;
+        }
+        from = length;
+        return false;
+    }
+
+    private static int indexOf(int index, int length) {
+        return index < 0 ? length : index;
+    }
+
+    /**
+     * Parse the id after the delimiter: [0-9]{1,9} and the closing delimiter.
+     */
+    private boolean parseCompactMarker(String text, int delimiterIndex, int length) {
+        int index = delimiterIndex + 1;
+        int id = 0;
+        while (index < length && index - delimiterIndex <= MAX_ID_DIGITS) {
+            char c = text.charAt(index);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            id = id * 10 + (c - '0');
+            index++;
+        }
+        if (index == delimiterIndex + 1 || index >= length || COMPACT_DELIMITER != text.charAt(index)) {
+            return false;
+        }
+        this.start = delimiterIndex;
+        this.end = index + 1;
+        this.fieldId = id;
+        this.moduleStart = -1;
+        this.moduleEnd = -1;
+        this.valueStart = -1;
+        this.valueEnd = -1;
+        return true;
+    }
+
+    /**
+     * Parse the module and value after the prefix: [\w-]+#.+?`
+     */
+    private boolean parseMarker(String text, int prefixIndex, int length) {
+        int index = prefixIndex + MARKER_PREFIX.length();
+        int moduleStart = index;
+        while (index < length && isModuleChar(text.charAt(index))) {
+            index++;
+        }
+        if (index == moduleStart || index >= length || MODULE_SEPARATOR != text.charAt(index)) {
+            return false;
+        }
+        int moduleEnd = index;
+        int valueStart = index + 1;
+        //The value has at least one character, so the end of the marker is searched after it.
+        index = valueStart;
+        if (index >= length || isLineTerminator(text.charAt(index))) {
+            return false;
+        }
+        index++;
+        while (index < length) {
+            char c = text.charAt(index);
+            if (MARKER_END == c) {
+                this.start = prefixIndex;
+                this.end = index + 1;
+                this.fieldId = BuildConfigClassField.NO_ID;
+                this.moduleStart = moduleStart;
+                this.moduleEnd = moduleEnd;
+                this.valueStart = valueStart;
+                this.valueEnd = index;
+                return true;
+            }
+            if (isLineTerminator(c)) {
+                return false;
+            }
+            index++;
+        }
+        return false;
+    }
+
+    /**
+     * The same characters as [\w-] in the pattern.
+     */
+    private static boolean isModuleChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+    }
+
+    /**
+     * The characters that the dot of the pattern does not match.
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * The start index of the whole marker, including the prefix.
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * The end index of the whole marker, exclusive.
+     */
+    public int end() {
+        return end;
+    }
+
+    /**
+     * The field id of a compact marker, {@link BuildConfigClassField#NO_ID} for a full marker.
+     */
+    public int fieldId() {
+        return fieldId;
+    }
+
+    /**
+     * The module and value spans of a full marker, -1 for a compact marker.
+     */
+    public int moduleStart() {
+        return moduleStart;
+    }
+
+    public int moduleEnd() {
+        return moduleEnd;
+    }
+
+    public int valueStart() {
+        return valueStart;
+    }
+
+    public int valueEnd() {
+        return valueEnd;
+    }
+}
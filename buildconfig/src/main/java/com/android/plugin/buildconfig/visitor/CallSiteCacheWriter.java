@@ -0,0 +1,125 @@
+package com.android.plugin.buildconfig.visitor;
+
+import com.android.plugin.buildconfig.BuildConfigConstants;
+import java.util.ArrayList;
+import java.util.List;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Cache the value of each rewritten call site of a class.
+ * Instead of calling the delegate every time, a site calls a synthetic method of its own class:
+ * <pre>
+ *     private static BuildConfigDelegate.Slot buildConfig$slot$0;
+ *
+ *     private static String buildConfig$site$0() {
+ *         BuildConfigDelegate.Slot slot = buildConfig$slot$0;
+ *         if (null != slot && slot.generation == BuildConfigDelegate.generation) {
+ *             return slot.value;
+ *         }
+ *         int generation = BuildConfigDelegate.generation;
+ *         String value = BuildConfigDelegate.getString(module, name, defaultValue);
+ *         buildConfig$slot$0 = new BuildConfigDelegate.Slot(generation, value);
+ *         return value;
+ *     }
+ * </pre>
+ * The delegate increases the generation whenever the flavor changes, so a flavor switch takes effect immediately.
+ * The slot is immutable, so a racing thread either sees an old slot, which fails the generation check, or a complete one.
+ */
+public final class CallSiteCacheWriter {
+    private static final String SLOT_FIELD_PREFIX = "buildConfig$slot$";
+    private static final String SITE_METHOD_PREFIX = "buildConfig$site$";
+    private static final String SITE_METHOD_DESCRIPTOR = "()Ljava/lang/String;";
+    private static final String SLOT_DESCRIPTOR = "L" + BuildConfigConstants.DELEGATE_SLOT_CLASS_DESC + ";";
+    private final String owner;
+    private final int classVersion;
+    private final StringConcatEmitter concatEmitter;
+    private final List<String> siteValues = new ArrayList<>();
+
+    /**
+     * @param owner The internal name of the class.
+     * @param classVersion The version of the class, the stack map frames are only written for Java 6+ classes.
+     */
+    public CallSiteCacheWriter(String owner, int classVersion, StringConcatEmitter concatEmitter) {
+        this.owner = owner;
+        this.classVersion = classVersion;
+        this.concatEmitter = concatEmitter;
+    }
+
+    /**
+     * Call the cached site of the constant string instead of emitting the delegate call in place.
+     */
+    public void visitSite(MethodVisitor mv, String value) {
+        String methodName = SITE_METHOD_PREFIX + siteValues.size();
+        siteValues.add(value);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, owner, methodName, SITE_METHOD_DESCRIPTOR, false);
+    }
+
+    /**
+     * Write the slots and the site methods, call it before the end of the class.
+     */
+    public void writeSites(ClassVisitor cv) {
+        for (int i = 0; i < siteValues.size(); i++) {
+            String slotName = SLOT_FIELD_PREFIX + i;
+            FieldVisitor fv = cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                    slotName, SLOT_DESCRIPTOR, null, null);
+            if (null != fv) {
+                fv.visitEnd();
+            }
+            MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                    SITE_METHOD_PREFIX + i, SITE_METHOD_DESCRIPTOR, null, null);
+            if (null != mv) {
+                writeSiteMethod(mv, slotName, siteValues.get(i));
+            }
+        }
+    }
+
+    private void writeSiteMethod(MethodVisitor mv, String slotName, String value) {
+        final int slotLocal = 0;
+        final int generationLocal = 1;
+        final int valueLocal = 2;
+        Label miss = new Label();
+        mv.visitCode();
+        mv.visitFieldInsn(Opcodes.GETSTATIC, owner, slotName, SLOT_DESCRIPTOR);
+        mv.visitVarInsn(Opcodes.ASTORE, slotLocal);
+        mv.visitVarInsn(Opcodes.ALOAD, slotLocal);
+        mv.visitJumpInsn(Opcodes.IFNULL, miss);
+        mv.visitVarInsn(Opcodes.ALOAD, slotLocal);
+        mv.visitFieldInsn(Opcodes.GETFIELD, BuildConfigConstants.DELEGATE_SLOT_CLASS_DESC,
+                BuildConfigConstants.DELEGATE_GENERATION_FIELD, "I");
+        visitGeneration(mv);
+        mv.visitJumpInsn(Opcodes.IF_ICMPNE, miss);
+        mv.visitVarInsn(Opcodes.ALOAD, slotLocal);
+        mv.visitFieldInsn(Opcodes.GETFIELD, BuildConfigConstants.DELEGATE_SLOT_CLASS_DESC, "value",
+                BuildConfigConstants.STRING_DESCRIPTOR);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitLabel(miss);
+        if ((classVersion & 0xFFFF) >= Opcodes.V1_6) {
+            mv.visitFrame(Opcodes.F_NEW, 1, new Object[]{BuildConfigConstants.DELEGATE_SLOT_CLASS_DESC}, 0, null);
+        }
+        //Read the generation before the value, a flavor switch in between only costs another miss.
+        visitGeneration(mv);
+        mv.visitVarInsn(Opcodes.ISTORE, generationLocal);
+        concatEmitter.emit(mv, value);
+        mv.visitVarInsn(Opcodes.ASTORE, valueLocal);
+        mv.visitTypeInsn(Opcodes.NEW, BuildConfigConstants.DELEGATE_SLOT_CLASS_DESC);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitVarInsn(Opcodes.ILOAD, generationLocal);
+        mv.visitVarInsn(Opcodes.ALOAD, valueLocal);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, BuildConfigConstants.DELEGATE_SLOT_CLASS_DESC, "<init>",
+                "(ILjava/lang/String;)V", false);
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, owner, slotName, SLOT_DESCRIPTOR);
+        mv.visitVarInsn(Opcodes.ALOAD, valueLocal);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(5, 3);
+        mv.visitEnd();
+    }
+
+    private static void visitGeneration(MethodVisitor mv) {
+        mv.visitFieldInsn(Opcodes.GETSTATIC, BuildConfigConstants.DELEGATE_CLASS_DESC,
+                BuildConfigConstants.DELEGATE_GENERATION_FIELD, "I");
+    }
+}
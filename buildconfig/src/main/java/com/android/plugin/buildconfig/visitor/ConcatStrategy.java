@@ -0,0 +1,30 @@
+package com.android.plugin.buildconfig.visitor;
+
+/**
+ * How a rewritten constant string is put together from its text and the delegate calls.
+ * A constant with a single marker and no surrounding text is always a bare delegate call, whatever the strategy is.
+ *
+ * @see StringConcatEmitter
+ */
+public enum ConcatStrategy {
+    /**
+     * String.concat for two parts, otherwise a presized StringBuilder.
+     * It never picks invokedynamic: StringConcatFactory only exists on API 26+, so a Java 9+ class of an app with
+     * a lower minSdk would depend on D8/R8 desugaring the call site.
+     */
+    AUTO,
+    /**
+     * new StringBuilder(capacity).append(...).toString()
+     */
+    STRING_BUILDER,
+    /**
+     * part1.concat(part2).concat(part3)
+     */
+    CONCAT,
+    /**
+     * invokedynamic StringConcatFactory.makeConcatWithConstants, only for Java 9+ classes.
+     * Older classes fall back to {@link #AUTO}. Only pick it for minSdk 26+, or if D8/R8 desugars the string
+     * concatenations of the app, otherwise the call site fails on the older devices.
+     */
+    INDY
+}
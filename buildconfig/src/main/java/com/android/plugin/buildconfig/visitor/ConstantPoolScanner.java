@@ -0,0 +1,127 @@
+package com.android.plugin.buildconfig.visitor;
+
+/**
+ * A lightweight scanner that walks the constant pool of a class file without parsing the rest of the class.
+ * All the constant strings of a class, including the ConstantValue of the fields, are stored in the CONSTANT_Utf8 entries.
+ * So if none of the entries contains a marker prefix, there is nothing to replace and we can skip the ASM round-trip.
+ * The scanner is conservative: if the class file looks malformed or uses an unknown constant tag, it reports a match
+ * and lets ASM process the class as before.
+ */
+public final class ConstantPoolScanner {
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+    /**
+     * magic(u4) + minor_version(u2) + major_version(u2)
+     */
+    private static final int CONSTANT_POOL_COUNT_OFFSET = 8;
+
+    private ConstantPoolScanner() {
+    }
+
+    /**
+     * Check if any CONSTANT_Utf8 entry of the class file contains one of the given bytes.
+     * The marker prefixes and the class names never contain a null character, so their modified UTF-8 form is the
+     * same as their UTF-8 bytes.
+     *
+     * @param classFile The class file bytes.
+     * @param needles   The bytes we are looking for.
+     * @return true if one of the entries contains a needle or the constant pool could not be parsed.
+     */
+    public static boolean containsUtf8(byte[] classFile, byte[]... needles) {
+        if (classFile.length < CONSTANT_POOL_COUNT_OFFSET + 2) {
+            return true;
+        }
+        final int constantPoolCount = readUnsignedShort(classFile, CONSTANT_POOL_COUNT_OFFSET);
+        int offset = CONSTANT_POOL_COUNT_OFFSET + 2;
+        for (int i = 1; i < constantPoolCount; i++) {
+            if (offset >= classFile.length) {
+                return true;
+            }
+            final int tag = classFile[offset];
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    if (offset + 3 > classFile.length) {
+                        return true;
+                    }
+                    final int length = readUnsignedShort(classFile, offset + 1);
+                    final int start = offset + 3;
+                    if (start + length > classFile.length) {
+                        return true;
+                    }
+                    for (byte[] needle : needles) {
+                        if (indexOf(classFile, start, start + length, needle) >= 0) {
+                            return true;
+                        }
+                    }
+                    offset = start + length;
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    offset += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    offset += 4;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    offset += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    //The long and double constants take two entries in the pool.
+                    offset += 9;
+                    i++;
+                    break;
+                default:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte[] needle) {
+        final int last = end - needle.length;
+        final byte first = needle[0];
+        for (int i = start; i <= last; i++) {
+            if (bytes[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < needle.length && bytes[i + j] == needle[j]) {
+                j++;
+            }
+            if (j == needle.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+}
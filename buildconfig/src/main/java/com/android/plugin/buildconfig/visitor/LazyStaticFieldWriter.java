@@ -0,0 +1,154 @@
+package com.android.plugin.buildconfig.visitor;
+
+import com.android.plugin.buildconfig.BuildConfigConstants;
+import com.android.plugin.buildconfig.LazyStaticFieldIndex;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.FieldNode;
+
+/**
+ * Initialize the static fields that contain a BuildConfig field lazily, instead of in the static constructor method.
+ * So the delegate calls no longer cluster in the class initialization, e.g., on the cold start path.
+ * Each field gets a synthetic static and a synthetic accessor with the visibility of the field:
+ * <pre>
+ *     private static String buildConfig$lazy$SERVER_URL;
+ *
+ *     public static String buildConfig$get$SERVER_URL() {
+ *         String value = buildConfig$lazy$SERVER_URL;
+ *         if (null == value) {
+ *             value = BuildConfigDelegate.getString(module, name, defaultValue);
+ *             buildConfig$lazy$SERVER_URL = value;
+ *         }
+ *         return value;
+ *     }
+ * </pre>
+ * Like String.hashCode, two threads may both compute the value. That is harmless, the value is a String,
+ * which is always safely published, and the static constructor method used to compute it only once as well.
+ * The field itself is no longer initialized, so all its reads are redirected to the accessor: the reads in the class
+ * itself, and the reads of the fields found in the {@link LazyStaticFieldIndex} in the other classes. javac inlines
+ * the constant, but the other compilers or a class compiled while the field was not a constant still read the field.
+ * Only reflection sees null.
+ */
+public final class LazyStaticFieldWriter {
+    private static final String LAZY_FIELD_PREFIX = "buildConfig$lazy$";
+    private static final String ACCESSOR_PREFIX = "buildConfig$get$";
+    private static final String ACCESSOR_DESCRIPTOR = "()Ljava/lang/String;";
+    private static final int VISIBILITY_FLAGS = Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED | Opcodes.ACC_PRIVATE;
+    private final String owner;
+    private final int classVersion;
+    private final StringConcatEmitter concatEmitter;
+    private final LazyStaticFieldIndex lazyFieldIndex;
+    /**
+     * The lazy fields of the class, the name to the field with its access flags and constant value.
+     */
+    private final Map<String, FieldNode> lazyFields = new LinkedHashMap<>();
+    private int redirectedCount;
+
+    /**
+     * @param owner The internal name of the class.
+     * @param classVersion The version of the class, the stack map frames are only written for Java 6+ classes.
+     * @param lazyFieldIndex The lazy fields of all the classes, the reads of the fields of the other classes are
+     *                       redirected as well.
+     */
+    public LazyStaticFieldWriter(String owner, int classVersion, StringConcatEmitter concatEmitter,
+            LazyStaticFieldIndex lazyFieldIndex) {
+        this.owner = owner;
+        this.classVersion = classVersion;
+        this.concatEmitter = concatEmitter;
+        this.lazyFieldIndex = lazyFieldIndex;
+    }
+
+    public void addField(int access, String name, String value) {
+        lazyFields.put(name, new FieldNode(access, name, BuildConfigConstants.STRING_DESCRIPTOR, null, value));
+    }
+
+    /**
+     * The lazy fields of the class and of all the other classes as {@code owner.name}.
+     */
+    public Set<String> getFieldKeys() {
+        if (lazyFields.isEmpty()) {
+            return lazyFieldIndex.getFields();
+        }
+        Set<String> fieldKeys = new HashSet<>(lazyFieldIndex.getFields());
+        for (String name : lazyFields.keySet()) {
+            fieldKeys.add(LazyStaticFieldIndex.key(owner, name));
+        }
+        return fieldKeys;
+    }
+
+    /**
+     * Redirect the read of a lazy field to its accessor.
+     *
+     * @return false if the instruction does not read a lazy field and nothing was written.
+     */
+    public boolean visitFieldInsn(MethodVisitor mv, int opcode, String owner, String name, String desc) {
+        if (Opcodes.GETSTATIC != opcode || !BuildConfigConstants.STRING_DESCRIPTOR.equals(desc)) {
+            return false;
+        }
+        //The index also has the fields the class inherits from its superclasses.
+        boolean isLazyField = this.owner.equals(owner) && lazyFields.containsKey(name)
+                || lazyFieldIndex.contains(owner, name);
+        if (!isLazyField) {
+            return false;
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, owner, ACCESSOR_PREFIX + name, ACCESSOR_DESCRIPTOR, false);
+        redirectedCount++;
+        return true;
+    }
+
+    /**
+     * The number of the reads redirected to an accessor.
+     */
+    public int getRedirectedCount() {
+        return redirectedCount;
+    }
+
+    /**
+     * Write the synthetic statics and the accessors, call it before the end of the class.
+     */
+    public void writeAccessors(ClassVisitor cv) {
+        for (FieldNode fieldNode : lazyFields.values()) {
+            String lazyFieldName = LAZY_FIELD_PREFIX + fieldNode.name;
+            FieldVisitor fv = cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                    lazyFieldName, BuildConfigConstants.STRING_DESCRIPTOR, null, null);
+            if (null != fv) {
+                fv.visitEnd();
+            }
+            //The other classes call the accessor wherever they were able to read the field.
+            int accessorAccess = (fieldNode.access & VISIBILITY_FLAGS) | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+            MethodVisitor mv = cv.visitMethod(accessorAccess, ACCESSOR_PREFIX + fieldNode.name, ACCESSOR_DESCRIPTOR,
+                    null, null);
+            if (null != mv) {
+                writeAccessor(mv, lazyFieldName, (String) fieldNode.value);
+            }
+        }
+    }
+
+    private void writeAccessor(MethodVisitor mv, String lazyFieldName, String value) {
+        Label initialized = new Label();
+        mv.visitCode();
+        mv.visitFieldInsn(Opcodes.GETSTATIC, owner, lazyFieldName, BuildConfigConstants.STRING_DESCRIPTOR);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitJumpInsn(Opcodes.IFNONNULL, initialized);
+        mv.visitInsn(Opcodes.POP);
+        if (!concatEmitter.emit(mv, value)) {
+            mv.visitLdcInsn(value);
+        }
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, owner, lazyFieldName, BuildConfigConstants.STRING_DESCRIPTOR);
+        mv.visitLabel(initialized);
+        if ((classVersion & 0xFFFF) >= Opcodes.V1_6) {
+            mv.visitFrame(Opcodes.F_NEW, 0, null, 1, new Object[]{"java/lang/String"});
+        }
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
@@ -0,0 +1,34 @@
+package com.android.plugin.buildconfig.visitor;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The marker LDC sites of a method that run inside a loop, found by the {@link MethodMarkerScanner}.
+ * When the call sites are not cached, these sites are still routed to a cached slot, so a loop no longer calls the
+ * delegate and concatenates the strings on every iteration.
+ */
+public final class LoopSites {
+    private final String method;
+    private final BitSet sites;
+    private final List<String> optimizedSites;
+
+    /**
+     * @param method The name and the descriptor of the method.
+     * @param sites The sites inside a loop, numbered by the order of the marker LDC instructions in the method.
+     * @param optimizedSites Collect the sites routed to a slot for the report, e.g., "run()V#0".
+     */
+    public LoopSites(String method, BitSet sites, List<String> optimizedSites) {
+        this.method = method;
+        this.sites = sites;
+        this.optimizedSites = optimizedSites;
+    }
+
+    public boolean contains(int site) {
+        return sites.get(site);
+    }
+
+    public void onSiteOptimized(int site) {
+        optimizedSites.add(method + "#" + site);
+    }
+}
@@ -0,0 +1,112 @@
+package com.android.plugin.buildconfig.visitor;
+
+import com.android.plugin.buildconfig.BuildConfigClassField;
+import com.android.plugin.buildconfig.BuildConfigFieldIndex;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The class visitor of the pass-through variants, e.g., release.
+ * It unwraps the markers back to the plain literals: "Url:`BuildConfig#app#https://help.com`" -> "Url:https://help.com"
+ * 1. The constant value of the fields, including the fields of BuildConfig itself.
+ * 2. The constant strings of the methods.
+ * 3. The string constants of the invokedynamic instructions, e.g., the recipe of a string concatenation.
+ * Nothing else changes and no delegate call is emitted, so the variant has no runtime overhead at all.
+ * A compact marker is unwrapped to the value of its field, it stays as it is if the field is unknown.
+ */
+public class MarkerUnwrapClassVisitor extends ClassVisitor {
+    private final BuildConfigMarkerScanner markerScanner = new BuildConfigMarkerScanner();
+    private final BuildConfigMarkerScanner fieldValueScanner = new BuildConfigMarkerScanner();
+    private final BuildConfigFieldIndex fieldIndex;
+    private int replacedCount;
+
+    public MarkerUnwrapClassVisitor(BuildConfigFieldIndex fieldIndex, ClassVisitor cv) {
+        super(Opcodes.ASM5, cv);
+        this.fieldIndex = fieldIndex;
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        return super.visitField(access, name, desc, signature, unwrapConstant(value));
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        if (null == mv) {
+            return null;
+        }
+        return new MethodVisitor(Opcodes.ASM5, mv) {
+            @Override
+            public void visitLdcInsn(Object value) {
+                super.visitLdcInsn(unwrapConstant(value));
+            }
+
+            @Override
+            public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                Object[] newBsmArgs = bsmArgs;
+                if (null != bsmArgs) {
+                    newBsmArgs = new Object[bsmArgs.length];
+                    for (int i = 0; i < bsmArgs.length; i++) {
+                        newBsmArgs[i] = unwrapConstant(bsmArgs[i]);
+                    }
+                }
+                super.visitInvokeDynamicInsn(name, desc, bsm, newBsmArgs);
+            }
+        };
+    }
+
+    /**
+     * The number of the markers unwrapped in the whole class.
+     */
+    public int getReplacedCount() {
+        return replacedCount;
+    }
+
+    private Object unwrapConstant(Object value) {
+        if (!(value instanceof String)) {
+            return value;
+        }
+        String stringValue = (String) value;
+        BuildConfigMarkerScanner scanner = markerScanner.reset(stringValue);
+        if (!scanner.find()) {
+            return value;
+        }
+        StringBuilder stringBuilder = new StringBuilder(stringValue.length());
+        int index = 0;
+        do {
+            stringBuilder.append(stringValue, index, scanner.start());
+            if (BuildConfigClassField.NO_ID == scanner.fieldId()) {
+                stringBuilder.append(stringValue, scanner.valueStart(), scanner.valueEnd());
+                replacedCount++;
+            } else if (!appendFieldValue(stringBuilder, fieldIndex.findById(scanner.fieldId()))) {
+                stringBuilder.append(stringValue, scanner.start(), scanner.end());
+            }
+            index = scanner.end();
+        } while (scanner.find());
+        stringBuilder.append(stringValue, index, stringValue.length());
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Append the value of the full marker of the field.
+     *
+     * @return false if the field is unknown and nothing was appended.
+     */
+    private boolean appendFieldValue(StringBuilder stringBuilder, BuildConfigClassField classField) {
+        if (null == classField) {
+            return false;
+        }
+        String marker = classField.getValue();
+        BuildConfigMarkerScanner scanner = fieldValueScanner.reset(marker);
+        if (!scanner.find() || BuildConfigClassField.NO_ID != scanner.fieldId()) {
+            return false;
+        }
+        stringBuilder.append(marker, scanner.valueStart(), scanner.valueEnd());
+        replacedCount++;
+        return true;
+    }
+}
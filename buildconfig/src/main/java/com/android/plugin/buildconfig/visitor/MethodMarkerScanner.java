@@ -0,0 +1,259 @@
+package com.android.plugin.buildconfig.visitor;
+
+import com.android.plugin.buildconfig.BuildConfigConstants;
+import com.android.plugin.buildconfig.LazyStaticFieldIndex;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Find the methods that need to be rewritten by walking the raw bytecode of a class.
+ * A method is touched if it loads a constant string that contains a BuildConfig marker, or reads one of the lazy
+ * static fields, of the class itself or of another class. The {@link StringReplaceClassInvitor} returns the visitor
+ * of the class writer for all the other methods, so ASM copies their bytecode as is instead of decoding and encoding
+ * them again.
+ * The scanner also finds the marker LDC sites inside a loop, i.e., between the target and the source of a backward
+ * branch. The sites are numbered by the order of the marker LDC instructions in the method.
+ * The scanner is conservative: if the class file looks malformed, it returns null and all the methods are rewritten.
+ */
+public final class MethodMarkerScanner {
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_STRING = 8;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int GETSTATIC = 0xb2;
+    private static final int IFEQ = 0x99;
+    private static final int JSR = 0xa8;
+    private static final int IFNULL = 0xc6;
+    private static final int IFNONNULL = 0xc7;
+    private static final int GOTO_W = 0xc8;
+    private static final int JSR_W = 0xc9;
+    private static final int TABLESWITCH = 0xaa;
+    private static final int LOOKUPSWITCH = 0xab;
+    private static final int WIDE = 0xc4;
+    private static final int IINC = 0x84;
+    /**
+     * The size of each instruction, including the opcode. 0 for the instructions with a variable size.
+     */
+    private static final byte[] INSTRUCTION_SIZES = new byte[256];
+
+    static {
+        for (int opcode = 0; opcode <= 0xc9; opcode++) {
+            INSTRUCTION_SIZES[opcode] = 1;
+        }
+        //bipush, ldc, the local variable loads and stores with an index, ret, newarray.
+        setSize(2, 0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37, 0x38, 0x39, 0x3a, 0xa9, 0xbc);
+        //sipush, ldc_w, ldc2_w, iinc, the field and method instructions, new, anewarray, checkcast, instanceof,
+        //ifnull, ifnonnull and the other branches below.
+        setSize(3, 0x11, 0x13, 0x14, IINC, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xbb, 0xbd, 0xc0, 0xc1,
+                0xc6, 0xc7);
+        for (int opcode = 0x99; opcode <= 0xa8; opcode++) {
+            INSTRUCTION_SIZES[opcode] = 3;
+        }
+        //multianewarray
+        setSize(4, 0xc5);
+        //invokeinterface, invokedynamic, goto_w, jsr_w
+        setSize(5, 0xb9, 0xba, 0xc8, 0xc9);
+        setSize(0, TABLESWITCH, LOOKUPSWITCH, WIDE);
+    }
+
+    private MethodMarkerScanner() {
+    }
+
+    private static void setSize(int size, int... opcodes) {
+        for (int opcode : opcodes) {
+            INSTRUCTION_SIZES[opcode] = (byte) size;
+        }
+    }
+
+    /**
+     * @param classReader The reader of the class.
+     * @param lazyFields The lazy static String fields as {@code owner.name}, their reads are redirected.
+     * @return The name and the descriptor of each touched method, e.g., "run()V", to the marker LDC sites inside
+     * a loop. Null to rewrite all the methods.
+     */
+    public static Map<String, BitSet> findTouchedMethods(ClassReader classReader, Set<String> lazyFields) {
+        try {
+            boolean[] touchedItems = findTouchedItems(classReader, lazyFields);
+            Map<String, BitSet> touchedMethods = new HashMap<>();
+            char[] buffer = new char[classReader.getMaxStringLength()];
+            //access_flags(u2) this_class(u2) super_class(u2) interfaces_count(u2) interfaces(u2 * count)
+            int offset = classReader.header + 6;
+            offset += 2 + classReader.readUnsignedShort(offset) * 2;
+            //The fields
+            int fieldsCount = classReader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < fieldsCount; i++) {
+                offset = skipAttributes(classReader, offset + 6);
+            }
+            int methodsCount = classReader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < methodsCount; i++) {
+                String name = classReader.readUTF8(offset + 2, buffer);
+                String descriptor = classReader.readUTF8(offset + 4, buffer);
+                int attributesCount = classReader.readUnsignedShort(offset + 6);
+                offset += 8;
+                for (int j = 0; j < attributesCount; j++) {
+                    int attributeLength = classReader.readInt(offset + 2);
+                    if ("Code".equals(classReader.readUTF8(offset, buffer))) {
+                        BitSet loopSites = scanCode(classReader, offset + 6, touchedItems);
+                        if (null != loopSites) {
+                            touchedMethods.put(name + descriptor, loopSites);
+                        }
+                    }
+                    offset += 6 + attributeLength;
+                }
+            }
+            return touchedMethods;
+        } catch (RuntimeException e) {
+            //e.g., ArrayIndexOutOfBoundsException, let ASM report the malformed class.
+            return null;
+        }
+    }
+
+    /**
+     * Mark the constant pool items that make a method touched when an instruction refers to them.
+     */
+    private static boolean[] findTouchedItems(ClassReader classReader, Set<String> lazyFields) {
+        final int itemCount = classReader.getItemCount();
+        boolean[] touchedItems = new boolean[itemCount];
+        char[] buffer = new char[classReader.getMaxStringLength()];
+        for (int i = 1; i < itemCount; i++) {
+            //The offset points to the content of the item, right after the tag.
+            //It is 0 for the second slot of a long or a double.
+            int itemOffset = classReader.getItem(i);
+            if (0 == itemOffset) {
+                continue;
+            }
+            int tag = classReader.readByte(itemOffset - 1);
+            if (CONSTANT_STRING == tag) {
+                String value = classReader.readUTF8(itemOffset, buffer);
+                touchedItems[i] = BuildConfigMarkerScanner.mayContainMarker(value);
+            } else if (CONSTANT_FIELDREF == tag && !lazyFields.isEmpty()) {
+                int nameAndTypeOffset = classReader.getItem(classReader.readUnsignedShort(itemOffset + 2));
+                String owner = classReader.readClass(itemOffset, buffer);
+                touchedItems[i] = lazyFields.contains(
+                        LazyStaticFieldIndex.key(owner, classReader.readUTF8(nameAndTypeOffset, buffer)))
+                        && BuildConfigConstants.STRING_DESCRIPTOR.equals(
+                        classReader.readUTF8(nameAndTypeOffset + 2, buffer));
+            }
+        }
+        return touchedItems;
+    }
+
+    /**
+     * @param codeOffset The offset of the Code attribute content: max_stack(u2) max_locals(u2) code_length(u4) code.
+     * @return The marker LDC sites inside a loop, or null if the method is not touched.
+     */
+    private static BitSet scanCode(ClassReader classReader, int codeOffset, boolean[] touchedItems) {
+        final int codeStart = codeOffset + 8;
+        final int codeLength = classReader.readInt(codeOffset + 4);
+        //attribute_length(u4) comes right before the content, the code has to fit in it.
+        if (codeLength < 0 || 8 + (long) codeLength > (classReader.readInt(codeOffset - 4) & 0xFFFFFFFFL)) {
+            throw new IllegalArgumentException("Malformed code length: " + codeLength);
+        }
+        final int codeEnd = codeStart + codeLength;
+        boolean touched = false;
+        //The offsets of the marker LDC sites, and the ranges of the backward branches as (target, source) pairs.
+        int[] siteOffsets = new int[4];
+        int siteCount = 0;
+        int[] loopRanges = new int[4];
+        int loopRangeCount = 0;
+        int offset = codeStart;
+        while (offset < codeEnd) {
+            int opcode = classReader.readByte(offset);
+            int branchOffset = 0;
+            switch (opcode) {
+                case LDC:
+                case LDC_W: {
+                    int item = LDC == opcode
+                            ? classReader.readByte(offset + 1) : classReader.readUnsignedShort(offset + 1);
+                    if (touchedItems[item]) {
+                        touched = true;
+                        if (siteCount == siteOffsets.length) {
+                            siteOffsets = Arrays.copyOf(siteOffsets, siteCount * 2);
+                        }
+                        siteOffsets[siteCount++] = offset;
+                    }
+                    offset += LDC == opcode ? 2 : 3;
+                    break;
+                }
+                case GETSTATIC:
+                    touched |= touchedItems[classReader.readUnsignedShort(offset + 1)];
+                    offset += 3;
+                    break;
+                case IFNULL:
+                case IFNONNULL:
+                    branchOffset = classReader.readShort(offset + 1);
+                    offset += 3;
+                    break;
+                case GOTO_W:
+                case JSR_W:
+                    branchOffset = classReader.readInt(offset + 1);
+                    offset += 5;
+                    break;
+                case TABLESWITCH: {
+                    //The padding aligns the operands to a multiple of four from the start of the code.
+                    offset += 4 - ((offset - codeStart) & 3);
+                    int low = classReader.readInt(offset + 4);
+                    int high = classReader.readInt(offset + 8);
+                    offset += 12 + (high - low + 1) * 4;
+                    break;
+                }
+                case LOOKUPSWITCH: {
+                    offset += 4 - ((offset - codeStart) & 3);
+                    int pairCount = classReader.readInt(offset + 4);
+                    offset += 8 + pairCount * 8;
+                    break;
+                }
+                case WIDE:
+                    offset += IINC == classReader.readByte(offset + 1) ? 6 : 4;
+                    break;
+                default:
+                    int size = INSTRUCTION_SIZES[opcode];
+                    if (0 == size) {
+                        throw new IllegalArgumentException("Unknown opcode: " + opcode);
+                    }
+                    if (IFEQ <= opcode && opcode <= JSR) {
+                        branchOffset = classReader.readShort(offset + 1);
+                    }
+                    offset += size;
+                    break;
+            }
+            if (branchOffset < 0) {
+                //The branch instruction has already been skipped, the offset is relative to its opcode.
+                if (loopRangeCount == loopRanges.length) {
+                    loopRanges = Arrays.copyOf(loopRanges, loopRangeCount * 2);
+                }
+                int source = offset - (GOTO_W == opcode || JSR_W == opcode ? 5 : 3);
+                loopRanges[loopRangeCount++] = source + branchOffset;
+                loopRanges[loopRangeCount++] = source;
+            }
+        }
+        if (!touched) {
+            return null;
+        }
+        BitSet loopSites = new BitSet();
+        for (int site = 0; site < siteCount; site++) {
+            for (int range = 0; range < loopRangeCount; range += 2) {
+                if (loopRanges[range] <= siteOffsets[site] && siteOffsets[site] < loopRanges[range + 1]) {
+                    loopSites.set(site);
+                    break;
+                }
+            }
+        }
+        return loopSites;
+    }
+
+    private static int skipAttributes(ClassReader classReader, int offset) {
+        int attributesCount = classReader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < attributesCount; i++) {
+            offset += 6 + classReader.readInt(offset + 2);
+        }
+        return offset;
+    }
+}
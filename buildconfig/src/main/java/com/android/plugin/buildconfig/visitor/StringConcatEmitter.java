@@ -0,0 +1,266 @@
+package com.android.plugin.buildconfig.visitor;
+
+import com.android.plugin.buildconfig.BuildConfigClassField;
+import com.android.plugin.buildconfig.BuildConfigConstants;
+import com.android.plugin.buildconfig.BuildConfigFieldIndex;
+import java.util.ArrayList;
+import java.util.List;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Emit the instructions of a rewritten constant string. It is shared by the method visitor and the static init creator.
+ * The constant string is split into parts: the text between the markers and the delegate calls of the markers.
+ * 1. A single delegate call is emitted as it is: BuildConfigDelegate.getString(module, name, defaultValue)
+ * The default value is the plain value of the field, so the markers do not stay in the constant pool.
+ * 2. Otherwise the parts are put together by the {@link ConcatStrategy}.
+ * The emitter keeps the parts of the current string, so each visitor has its own instance.
+ */
+public final class StringConcatEmitter {
+    private static final String STRING_BUILDER = "java/lang/StringBuilder";
+    private static final String STRING = "java/lang/String";
+    private static final String APPEND_DESCRIPTOR = "(Ljava/lang/String;)Ljava/lang/StringBuilder;";
+    private static final String CONCAT_DESCRIPTOR = "(Ljava/lang/String;)Ljava/lang/String;";
+    /**
+     * The capacity we reserve for a delegate call when we presize the StringBuilder.
+     */
+    private static final int DELEGATE_CALL_CAPACITY = 16;
+    private static final char RECIPE_ARGUMENT = '\u0001';
+    private static final char RECIPE_CONSTANT = '\u0002';
+    /**
+     * The maximum number of the arguments of a StringConcatFactory call site.
+     */
+    private static final int MAX_INDY_ARGUMENTS = 200;
+    private static final Handle STRING_CONCAT_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+            "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                    + "Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+    private final BuildConfigFieldIndex fieldIndex;
+    private final ConcatStrategy strategy;
+    private final boolean supportsIndy;
+    private final BuildConfigMarkerScanner markerScanner = new BuildConfigMarkerScanner();
+    private final BuildConfigMarkerScanner defaultValueScanner = new BuildConfigMarkerScanner();
+    /**
+     * The parts of the current string, a String is a text and a BuildConfigClassField is a delegate call.
+     */
+    private final List<Object> parts = new ArrayList<>();
+    private int replacedCount;
+
+    /**
+     * @param classVersion The version of the class, the invokedynamic strategy needs Java 9 or later.
+     */
+    public StringConcatEmitter(BuildConfigFieldIndex fieldIndex, ConcatStrategy strategy, int classVersion) {
+        this.fieldIndex = fieldIndex;
+        this.strategy = null == strategy ? ConcatStrategy.AUTO : strategy;
+        this.supportsIndy = (classVersion & 0xFFFF) >= Opcodes.V9;
+    }
+
+    /**
+     * Emit the rewritten string if it contains any marker. The result is left on the stack.
+     *
+     * @return false if the string does not contain any marker and nothing was emitted.
+     */
+    public boolean emit(MethodVisitor mv, String value) {
+        BuildConfigMarkerScanner scanner = markerScanner.reset(value);
+        if (!scanner.find()) {
+            return false;
+        }
+        parts.clear();
+        int index = 0;
+        do {
+            int start = scanner.start();
+            int end = scanner.end();
+            if (index != start) {
+                addText(value.substring(index, start));
+            }
+            BuildConfigClassField classField = findClassField(value, scanner);
+            if (null != classField) {
+                parts.add(classField);
+                replacedCount++;
+            }
+            index = end;
+        } while (scanner.find());
+        if (index != value.length()) {
+            addText(value.substring(index));
+        }
+        emitParts(mv);
+        return true;
+    }
+
+    /**
+     * Check if the string contains a marker of a known field, without emitting anything.
+     */
+    public boolean hasDelegateCall(String value) {
+        BuildConfigMarkerScanner scanner = markerScanner.reset(value);
+        while (scanner.find()) {
+            if (null != findClassField(value, scanner)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A compact marker is resolved by its id, a full marker by its text.
+     */
+    private BuildConfigClassField findClassField(String value, BuildConfigMarkerScanner scanner) {
+        if (BuildConfigClassField.NO_ID != scanner.fieldId()) {
+            return fieldIndex.findById(scanner.fieldId());
+        }
+        return fieldIndex.findByMarker(value.substring(scanner.start(), scanner.end()));
+    }
+
+    /**
+     * The number of the BuildConfig fields replaced by the delegate calls.
+     */
+    public int getReplacedCount() {
+        return replacedCount;
+    }
+
+    private void addText(String text) {
+        int last = parts.size() - 1;
+        //The text around a marker we do not know is merged.
+        if (0 <= last && parts.get(last) instanceof String) {
+            parts.set(last, parts.get(last) + text);
+        } else {
+            parts.add(text);
+        }
+    }
+
+    private void emitParts(MethodVisitor mv) {
+        if (parts.isEmpty()) {
+            mv.visitLdcInsn("");
+            return;
+        }
+        if (1 == parts.size()) {
+            emitPart(mv, parts.get(0));
+            return;
+        }
+        switch (resolveStrategy()) {
+            case INDY:
+                emitInvokeDynamic(mv);
+                break;
+            case CONCAT:
+                emitConcat(mv);
+                break;
+            default:
+                emitStringBuilder(mv);
+                break;
+        }
+    }
+
+    /**
+     * invokedynamic is only used when it was asked for, see {@link ConcatStrategy#AUTO}.
+     */
+    private ConcatStrategy resolveStrategy() {
+        if (ConcatStrategy.STRING_BUILDER == strategy || ConcatStrategy.CONCAT == strategy) {
+            return strategy;
+        }
+        if (ConcatStrategy.INDY == strategy && supportsIndy && parts.size() <= MAX_INDY_ARGUMENTS) {
+            return ConcatStrategy.INDY;
+        }
+        return 2 == parts.size() ? ConcatStrategy.CONCAT : ConcatStrategy.STRING_BUILDER;
+    }
+
+    private void emitPart(MethodVisitor mv, Object part) {
+        if (part instanceof String) {
+            mv.visitLdcInsn(part);
+        } else {
+            BuildConfigClassField classField = (BuildConfigClassField) part;
+            mv.visitLdcInsn(classField.getModule());
+            mv.visitLdcInsn(classField.getName());
+            mv.visitLdcInsn(getDefaultValue(classField));
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, BuildConfigConstants.DELEGATE_CLASS_DESC,
+                    BuildConfigConstants.DELEGATE_METHOD_NAME,
+                    BuildConfigConstants.DELEGATE_METHOD_DESCRIPTOR, false);
+        }
+    }
+
+    /**
+     * The plain value of the full marker of the field: `BuildConfig#app#https://help.com` -> https://help.com
+     */
+    private String getDefaultValue(BuildConfigClassField classField) {
+        String marker = classField.getValue();
+        BuildConfigMarkerScanner scanner = defaultValueScanner.reset(marker);
+        if (scanner.find() && BuildConfigClassField.NO_ID == scanner.fieldId()) {
+            return marker.substring(scanner.valueStart(), scanner.valueEnd());
+        }
+        return marker;
+    }
+
+    /**
+     * new StringBuilder(capacity).append(part1).append(part2).toString()
+     * The capacity is the length of the text plus a guess for each delegate call, so the builder never grows.
+     */
+    private void emitStringBuilder(MethodVisitor mv) {
+        int capacity = 0;
+        for (Object part : parts) {
+            capacity += part instanceof String ? ((String) part).length() : DELEGATE_CALL_CAPACITY;
+        }
+        mv.visitTypeInsn(Opcodes.NEW, STRING_BUILDER);
+        mv.visitInsn(Opcodes.DUP);
+        pushInt(mv, capacity);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, STRING_BUILDER, "<init>", "(I)V", false);
+        for (Object part : parts) {
+            emitPart(mv, part);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append", APPEND_DESCRIPTOR, false);
+        }
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "toString", "()Ljava/lang/String;", false);
+    }
+
+    /**
+     * part1.concat(part2).concat(part3)
+     * The delegate never returns null, so String.concat is safe here.
+     */
+    private void emitConcat(MethodVisitor mv) {
+        emitPart(mv, parts.get(0));
+        for (int i = 1; i < parts.size(); i++) {
+            emitPart(mv, parts.get(i));
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING, "concat", CONCAT_DESCRIPTOR, false);
+        }
+    }
+
+    /**
+     * invokedynamic makeConcatWithConstants, the text goes into the recipe and the delegate calls are the arguments.
+     * The text that contains the recipe tags is passed as a constant of the bootstrap method.
+     */
+    private void emitInvokeDynamic(MethodVisitor mv) {
+        StringBuilder recipe = new StringBuilder();
+        StringBuilder descriptor = new StringBuilder("(");
+        List<Object> constants = new ArrayList<>();
+        for (Object part : parts) {
+            if (part instanceof String) {
+                String text = (String) part;
+                if (0 <= text.indexOf(RECIPE_ARGUMENT) || 0 <= text.indexOf(RECIPE_CONSTANT)) {
+                    recipe.append(RECIPE_CONSTANT);
+                    constants.add(text);
+                } else {
+                    recipe.append(text);
+                }
+            } else {
+                emitPart(mv, part);
+                recipe.append(RECIPE_ARGUMENT);
+                descriptor.append(BuildConfigConstants.STRING_DESCRIPTOR);
+            }
+        }
+        descriptor.append(")").append(BuildConfigConstants.STRING_DESCRIPTOR);
+        Object[] bootstrapArguments = new Object[constants.size() + 1];
+        bootstrapArguments[0] = recipe.toString();
+        for (int i = 0; i < constants.size(); i++) {
+            bootstrapArguments[i + 1] = constants.get(i);
+        }
+        mv.visitInvokeDynamicInsn("makeConcatWithConstants", descriptor.toString(), STRING_CONCAT_BOOTSTRAP,
+                bootstrapArguments);
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+}
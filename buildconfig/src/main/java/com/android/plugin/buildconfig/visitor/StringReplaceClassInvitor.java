@@ -1,9 +1,15 @@
 package com.android.plugin.buildconfig.visitor;
 
-import com.android.plugin.buildconfig.BuildConfigClassField;
 import com.android.plugin.buildconfig.BuildConfigConstants;
+import com.android.plugin.buildconfig.BuildConfigFieldIndex;
+import com.android.plugin.buildconfig.LazyStaticFieldIndex;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
@@ -17,30 +23,108 @@ import org.objectweb.asm.tree.FieldNode;
  * 1. Constant string inside the static initial block: clinit
  * 2. Constant string inside the instance construction: init
  * 3. Constant string inside method
+ * With the class reader, only the methods found by the {@link MethodMarkerScanner} are rewritten, the others are
+ * returned to the class writer directly, so ASM copies them as is.
  */
 public class StringReplaceClassInvitor extends ClassVisitor {
     private StringReplaceStaticInitMethodCreator staticInitMethodCreator;
     private List<FieldNode> fieldNodeList = new ArrayList<>();
-    private List<BuildConfigClassField> classFieldList;
+    private final BuildConfigFieldIndex fieldIndex;
+    private final ConcatStrategy concatStrategy;
+    private final boolean cacheCallSites;
+    private final boolean cacheLoopSites;
+    private final boolean lazyStaticFields;
+    private final LazyStaticFieldIndex lazyFieldIndex;
+    private final ClassReader classReader;
+    private boolean isInterface;
+    private boolean hasScannedMethods;
+    /**
+     * The methods to rewrite and their sites inside a loop, null to rewrite all the methods.
+     */
+    private Map<String, BitSet> touchedMethods;
+    private final List<String> optimizedLoopSites = new ArrayList<>();
+    private StringConcatEmitter concatEmitter;
+    private CallSiteCacheWriter callSiteCacheWriter;
+    private LazyStaticFieldWriter lazyStaticFieldWriter;
 
-    public StringReplaceClassInvitor(List<BuildConfigClassField> classFieldList,
+    public StringReplaceClassInvitor(BuildConfigFieldIndex fieldIndex,
+            ClassWriter cw) {
+        this(fieldIndex, ConcatStrategy.AUTO, true, false, false, null, cw);
+    }
+
+    /**
+     * @param fieldIndex The index of the BuildConfig fields. It is immutable, so all the visitors share the same one.
+     * @param concatStrategy How the rewritten constant strings are put together.
+     * @param cacheCallSites Cache the value of each rewritten site in a synthetic slot of the class.
+     * @param cacheLoopSites Without the call site cache, still cache the sites inside a loop. It needs the class reader.
+     * @param lazyStaticFields Initialize the static fields that contain a BuildConfig field on the first read
+     *                         instead of in the static constructor method.
+     * @param classReader The reader that the class writer was created with, null to rewrite all the methods.
+     */
+    public StringReplaceClassInvitor(BuildConfigFieldIndex fieldIndex,
+            ConcatStrategy concatStrategy,
+            boolean cacheCallSites,
+            boolean cacheLoopSites,
+            boolean lazyStaticFields,
+            ClassReader classReader,
+            ClassWriter cw) {
+        this(fieldIndex, concatStrategy, cacheCallSites, cacheLoopSites, lazyStaticFields, LazyStaticFieldIndex.EMPTY,
+                classReader, cw);
+    }
+
+    /**
+     * @param lazyFieldIndex The lazy static fields of all the classes, their reads in this class are redirected to
+     *                       their accessors as well. Only used with the lazy static fields.
+     */
+    public StringReplaceClassInvitor(BuildConfigFieldIndex fieldIndex,
+            ConcatStrategy concatStrategy,
+            boolean cacheCallSites,
+            boolean cacheLoopSites,
+            boolean lazyStaticFields,
+            LazyStaticFieldIndex lazyFieldIndex,
+            ClassReader classReader,
             ClassWriter cw) {
         super(Opcodes.ASM5, cw);
-        this.classFieldList = classFieldList;
+        this.fieldIndex = fieldIndex;
+        this.concatStrategy = concatStrategy;
+        this.cacheCallSites = cacheCallSites;
+        this.cacheLoopSites = cacheLoopSites;
+        this.lazyStaticFields = lazyStaticFields;
+        this.lazyFieldIndex = lazyFieldIndex;
+        this.classReader = classReader;
     }
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        staticInitMethodCreator = new StringReplaceStaticInitMethodCreator(classFieldList, fieldNodeList, this);
+        //The emitter needs the class version to know if the class is able to use invokedynamic.
+        concatEmitter = new StringConcatEmitter(fieldIndex, concatStrategy, version);
+        staticInitMethodCreator = new StringReplaceStaticInitMethodCreator(concatEmitter, fieldNodeList, cv, name);
+        //An interface can not have the private static slots and accessors.
+        isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+        if ((cacheCallSites || cacheLoopSites) && !isInterface) {
+            callSiteCacheWriter = new CallSiteCacheWriter(name, version, concatEmitter);
+        }
+        if (lazyStaticFields) {
+            //An interface still redirects its reads of the lazy fields of the other classes.
+            lazyStaticFieldWriter = new LazyStaticFieldWriter(name, version, concatEmitter, lazyFieldIndex);
+        }
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
         Object fieldValue = value;
-        if (BuildConfigConstants.STRING_DESCRIPTOR.equals(desc) && value != null) {
+        //Only the static fields that contain a BuildConfig field lose the constant value.
+        //The constant value of an instance field is ignored, its constructor assigns the value and is replaced as usual.
+        if ((access & Opcodes.ACC_STATIC) != 0 && BuildConfigConstants.STRING_DESCRIPTOR.equals(desc)
+                && value instanceof String && concatEmitter.hasDelegateCall((String) value)) {
             fieldValue = null;
-            fieldNodeList.add(new FieldNode(access, name, desc, signature, value));
+            if (null != lazyStaticFieldWriter && !isInterface) {
+                //The static constructor method leaves the field alone, the accessor computes the value on demand.
+                lazyStaticFieldWriter.addField(access, name, (String) value);
+            } else {
+                fieldNodeList.add(new FieldNode(access, name, desc, signature, value));
+            }
         }
         return super.visitField(access, name, desc, signature, fieldValue);
     }
@@ -48,22 +132,70 @@ public class StringReplaceClassInvitor extends ClassVisitor {
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
         MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-        StringReplaceMethodVisitor stringReplaceMethodVisitor = new StringReplaceMethodVisitor(classFieldList, mv);
+        if (!isTouched(name, desc)) {
+            //Keep the visitor of the class writer, the static constructor method is only wrapped if it has to
+            //initialize the fields.
+            return BuildConfigConstants.CLINIT.equals(name)
+                    ? staticInitMethodCreator.visitStaticInitializationBlock(mv, mv) : mv;
+        }
+        CallSiteCacheWriter siteCacheWriter = null;
+        LoopSites loopSites = null;
+        if (cacheCallSites) {
+            //The static initializer only runs once, there is nothing to cache.
+            siteCacheWriter = BuildConfigConstants.CLINIT.equals(name) ? null : callSiteCacheWriter;
+        } else if (null != callSiteCacheWriter && null != touchedMethods
+                && !touchedMethods.get(name + desc).isEmpty()) {
+            //Even the static initializer may run a loop.
+            siteCacheWriter = callSiteCacheWriter;
+            loopSites = new LoopSites(name + desc, touchedMethods.get(name + desc), optimizedLoopSites);
+        }
+        StringReplaceMethodVisitor stringReplaceMethodVisitor =
+                new StringReplaceMethodVisitor(concatEmitter, siteCacheWriter, loopSites, lazyStaticFieldWriter, mv);
         if (BuildConfigConstants.CLINIT.equals(name)) {
-            if (!staticInitMethodCreator.hasStaticInitializationBlock()) {
-                staticInitMethodCreator.foundStaticInitializationBlock();
-                return stringReplaceMethodVisitor;
-            }
-            return mv;
-        } else if (BuildConfigConstants.INIT.equals(name)) {
-            return stringReplaceMethodVisitor;
-        } else {
-            return stringReplaceMethodVisitor;
+            //Initialize the fields that lost their constant value before the original code.
+            return staticInitMethodCreator.visitStaticInitializationBlock(stringReplaceMethodVisitor, mv);
         }
+        return stringReplaceMethodVisitor;
+    }
+
+    /**
+     * The fields are visited before the methods, so the lazy fields are all known on the first method.
+     */
+    private boolean isTouched(String name, String desc) {
+        if (!hasScannedMethods && null != classReader) {
+            hasScannedMethods = true;
+            Set<String> lazyFields = null == lazyStaticFieldWriter
+                    ? Collections.<String>emptySet() : lazyStaticFieldWriter.getFieldKeys();
+            touchedMethods = MethodMarkerScanner.findTouchedMethods(classReader, lazyFields);
+        }
+        return null == touchedMethods || touchedMethods.containsKey(name + desc);
     }
 
     @Override public void visitEnd() {
         staticInitMethodCreator.createStaticInitializationBlockIfNecessary();
+        if (null != callSiteCacheWriter && null != cv) {
+            callSiteCacheWriter.writeSites(cv);
+        }
+        if (null != lazyStaticFieldWriter && null != cv) {
+            lazyStaticFieldWriter.writeAccessors(cv);
+        }
         super.visitEnd();
     }
+
+    /**
+     * The number of the BuildConfig fields replaced by the delegate calls and the reads of the lazy fields redirected
+     * to their accessors in the whole class. Only available after the class has been visited.
+     */
+    public int getReplacedCount() {
+        int redirectedCount = null == lazyStaticFieldWriter ? 0 : lazyStaticFieldWriter.getRedirectedCount();
+        return concatEmitter.getReplacedCount() + redirectedCount;
+    }
+
+    /**
+     * The sites inside a loop that were routed to a slot without the call site cache, e.g., "run()V#0".
+     * Only available after the class has been visited.
+     */
+    public List<String> getOptimizedLoopSites() {
+        return optimizedLoopSites;
+    }
 }
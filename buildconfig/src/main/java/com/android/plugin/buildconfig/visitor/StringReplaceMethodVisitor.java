@@ -1,10 +1,5 @@
 package com.android.plugin.buildconfig.visitor;
 
-import com.android.plugin.buildconfig.BuildConfigClassField;
-import com.android.plugin.buildconfig.BuildConfigConstants;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
@@ -21,15 +16,56 @@ import org.objectweb.asm.Opcodes;
  * Handle the string value.
  * Our pattern is `BuildConfig#<module name>#value`
  * However, The string value might contains multiple fields. e.g., "Url1:`BuildConfig#<module name>#value1` Url2: `BuildConfig#<module name>#value2`"
- * So, we have to convert the constant string to a StringBuilder and connect all the strings.
+ * So, we have to connect all the strings, the {@link StringConcatEmitter} picks the cheapest way to do it.
  */
 public class StringReplaceMethodVisitor extends MethodVisitor {
-    private List<BuildConfigClassField> classFieldList;
+    private final StringConcatEmitter concatEmitter;
+    private final CallSiteCacheWriter callSiteCacheWriter;
+    private final LazyStaticFieldWriter lazyStaticFieldWriter;
+    private final LoopSites loopSites;
+    /**
+     * The number of the marker LDC sites visited so far, in the same order as the {@link MethodMarkerScanner}.
+     */
+    private int siteCount;
 
-    public StringReplaceMethodVisitor(List<BuildConfigClassField> classFieldList,
+    public StringReplaceMethodVisitor(StringConcatEmitter concatEmitter,
+            CallSiteCacheWriter callSiteCacheWriter,
+            MethodVisitor methodVisitor) {
+        this(concatEmitter, callSiteCacheWriter, null, methodVisitor);
+    }
+
+    /**
+     * @param callSiteCacheWriter Cache the value of each site, null to call the delegate in place.
+     * @param lazyStaticFieldWriter Redirect the reads of the lazy static fields to their accessors, null if there is none.
+     */
+    public StringReplaceMethodVisitor(StringConcatEmitter concatEmitter,
+            CallSiteCacheWriter callSiteCacheWriter,
+            LazyStaticFieldWriter lazyStaticFieldWriter,
+            MethodVisitor methodVisitor) {
+        this(concatEmitter, callSiteCacheWriter, null, lazyStaticFieldWriter, methodVisitor);
+    }
+
+    /**
+     * @param loopSites Only cache the sites inside a loop, null to cache all the sites.
+     */
+    public StringReplaceMethodVisitor(StringConcatEmitter concatEmitter,
+            CallSiteCacheWriter callSiteCacheWriter,
+            LoopSites loopSites,
+            LazyStaticFieldWriter lazyStaticFieldWriter,
             MethodVisitor methodVisitor) {
         super(Opcodes.ASM5, methodVisitor);
-        this.classFieldList = classFieldList;
+        this.concatEmitter = concatEmitter;
+        this.callSiteCacheWriter = callSiteCacheWriter;
+        this.loopSites = loopSites;
+        this.lazyStaticFieldWriter = lazyStaticFieldWriter;
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        if (null == mv || null == lazyStaticFieldWriter
+                || !lazyStaticFieldWriter.visitFieldInsn(mv, opcode, owner, name, desc)) {
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
     }
 
     @Override
@@ -39,64 +75,26 @@ public class StringReplaceMethodVisitor extends MethodVisitor {
             return;
         }
         String stringValue = (String) value;
-        final Pattern pattern = BuildConfigConstants.BUILD_CONFIG_VALUE_PATTERN;
-        Matcher matcher = pattern.matcher(stringValue);
-        if (!matcher.find()) {
+        if (null != mv && isCachedSite(stringValue) && concatEmitter.hasDelegateCall(stringValue)) {
+            callSiteCacheWriter.visitSite(mv, stringValue);
+        } else if (null == mv || !concatEmitter.emit(mv, stringValue)) {
             super.visitLdcInsn(stringValue);
-            return;
-        }
-
-        super.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder");
-        super.visitInsn(Opcodes.DUP);
-        super.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
-
-        int index = 0;
-        matcher = pattern.matcher(stringValue);
-        while (matcher.find()) {
-            int start = matcher.start();
-            int end = matcher.end();
-            if (index != start) {
-                String stringConstant = stringValue.substring(index, start);
-                super.visitLdcInsn(stringConstant);
-                super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-            }
-            String module = matcher.group("module");
-            CharSequence text = stringValue.subSequence(start, end);
-            BuildConfigClassField classField = findClassField(text);
-            if (null != classField) {
-                super.visitLdcInsn(module);
-                super.visitLdcInsn(classField.getName());
-                super.visitLdcInsn(classField.getValue());
-                System.out.println("\t" + classField.getValue());
-                super.visitMethodInsn(Opcodes.INVOKESTATIC, BuildConfigConstants.DELEGATE_CLASS_DESC,
-                        BuildConfigConstants.DELEGATE_METHOD_NAME,
-                        BuildConfigConstants.DELEGATE_METHOD_DESCRIPTOR, false);
-                super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-            }
-            index = end;
-        }
-        if (index != stringValue.length()) {
-            String stringConstant = stringValue.substring(index);
-            super.visitLdcInsn(stringConstant);
-            super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
         }
-        super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;",
-                false);
     }
 
-    private BuildConfigClassField findClassField(CharSequence value) {
-        if (null != classFieldList) {
-            for (BuildConfigClassField classField : classFieldList) {
-                String fieldValue = classField.getValue();
-                if (null != fieldValue && 0 < fieldValue.trim().length() && value.equals(fieldValue)) {
-                    return classField;
-                }
-            }
+    private boolean isCachedSite(String value) {
+        if (!BuildConfigMarkerScanner.mayContainMarker(value)) {
+            return false;
         }
-        return null;
+        int site = siteCount++;
+        if (null == callSiteCacheWriter) {
+            return false;
+        } else if (null == loopSites) {
+            return true;
+        } else if (loopSites.contains(site) && concatEmitter.hasDelegateCall(value)) {
+            loopSites.onSiteOptimized(site);
+            return true;
+        }
+        return false;
     }
-
 }
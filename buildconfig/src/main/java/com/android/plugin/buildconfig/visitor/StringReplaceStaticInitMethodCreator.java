@@ -1,10 +1,7 @@
 package com.android.plugin.buildconfig.visitor;
 
-import com.android.plugin.buildconfig.BuildConfigClassField;
 import com.android.plugin.buildconfig.BuildConfigConstants;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -13,23 +10,34 @@ import org.objectweb.asm.tree.FieldNode;
 /**
  * The static constructor method creator.
  * Since there is no way to turn the constant string to StringBuilder directly.
- * We need always set the constant string to null, hold it and then initial the field in the static constructor method.
- * That's why we need this static constructor method creator.
- * This class makes sure we only initial the static fields once and convert the constant value to StringBuilder.
+ * We need to set the constant value of the static fields that contain a BuildConfig field to null, hold them and then
+ * initial the fields in the static constructor method. All the other constants keep their constant value.
+ * 1. If the class has a static constructor method, the fields are initialized at the beginning of it.
+ * Before the class used to be initialized by the constant value, so the rest of the method still sees the values.
+ * 2. Otherwise, we create a static constructor method, only if there is a field to initialize.
+ * This class makes sure we only initial the static fields once and convert the constant value by the {@link StringConcatEmitter}.
  */
 public class StringReplaceStaticInitMethodCreator {
     private final List<FieldNode> stringFieldNodeList;
-    private final List<BuildConfigClassField> classFieldList;
+    private final StringConcatEmitter concatEmitter;
     private final ClassVisitor classVisitor;
+    private final String owner;
     private boolean hasCreateStaticInitializationBlock;
 
+    /**
+     * @param stringFieldNodeList The static fields that lost their constant value.
+     * @param classVisitor The next class visitor, the created method must not be replaced again.
+     * @param owner The internal name of the class.
+     */
     public StringReplaceStaticInitMethodCreator(
-            List<BuildConfigClassField> classFieldList,
+            StringConcatEmitter concatEmitter,
             List<FieldNode> stringFieldNodeList,
-            final ClassVisitor classVisitor) {
+            final ClassVisitor classVisitor,
+            String owner) {
         this.classVisitor = classVisitor;
         this.stringFieldNodeList = stringFieldNodeList;
-        this.classFieldList = classFieldList;
+        this.concatEmitter = concatEmitter;
+        this.owner = owner;
     }
 
     public void foundStaticInitializationBlock() {
@@ -40,72 +48,53 @@ public class StringReplaceStaticInitMethodCreator {
         return hasCreateStaticInitializationBlock;
     }
 
+    /**
+     * Initialize the fields at the beginning of the existing static constructor method.
+     *
+     * @param methodVisitor The visitor of the method, e.g., the string replace method visitor.
+     * @param nextMethodVisitor The next visitor of the method, the initialization is written to it directly.
+     */
+    public MethodVisitor visitStaticInitializationBlock(MethodVisitor methodVisitor,
+            final MethodVisitor nextMethodVisitor) {
+        foundStaticInitializationBlock();
+        if (stringFieldNodeList.isEmpty() || null == nextMethodVisitor) {
+            return methodVisitor;
+        }
+        return new MethodVisitor(Opcodes.ASM5, methodVisitor) {
+            @Override
+            public void visitCode() {
+                super.visitCode();
+                initStaticFields(nextMethodVisitor);
+            }
+        };
+    }
+
     public void createStaticInitializationBlockIfNecessary() {
-        if (hasStaticInitializationBlock())
+        if (hasStaticInitializationBlock() || stringFieldNodeList.isEmpty())
             return;
         foundStaticInitializationBlock();
         MethodVisitor mv = classVisitor.visitMethod(Opcodes.ACC_STATIC, BuildConfigConstants.CLINIT, "()V", null, null);
-        mv.visitCode();
-        // Here init static final fields.
-        for (FieldNode field : stringFieldNodeList) {
-            if ((field.access & Opcodes.ACC_STATIC) != 0 && (field.access & Opcodes.ACC_FINAL) != 0) {
-                String stringValue = (String) field.value;
-                final Pattern pattern = BuildConfigConstants.BUILD_CONFIG_VALUE_PATTERN;
-                Matcher matcher = pattern.matcher(stringValue);
-
-                mv.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder");
-                mv.visitInsn(Opcodes.DUP);
-                mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
-
-                int index = 0;
-                while (matcher.find()) {
-                    int start = matcher.start();
-                    int end = matcher.end();
-                    if (index != start) {
-                        String stringConstant = stringValue.substring(index, start);
-                        mv.visitLdcInsn(stringConstant);
-                        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-                    }
-                    CharSequence text = stringValue.subSequence(start, end);
-                    BuildConfigClassField classField = findClassField(text);
-                    if (null != classField) {
-                        mv.visitLdcInsn(classField.getModule());
-                        mv.visitLdcInsn(classField.getName());
-                        mv.visitLdcInsn(classField.getValue());
-                        System.out.println("\t" + classField.getValue());
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, BuildConfigConstants.DELEGATE_CLASS_DESC,
-                                BuildConfigConstants.DELEGATE_METHOD_NAME,
-                                BuildConfigConstants.DELEGATE_METHOD_DESCRIPTOR, false);
-                        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-                    }
-                }
-                if (index != stringValue.length()) {
-                    String stringConstant = stringValue.substring(index);
-                    mv.visitLdcInsn(stringConstant);
-                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                            "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-                }
-                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString",
-                        "()Ljava/lang/String;",
-                        false);
-            }
+        if (null == mv) {
+            return;
         }
+        mv.visitCode();
+        initStaticFields(mv);
         mv.visitInsn(Opcodes.RETURN);
-        mv.visitMaxs(1, 0);
+        mv.visitMaxs(0, 0);
         mv.visitEnd();
     }
 
-    private BuildConfigClassField findClassField(CharSequence value) {
-        if (null != classFieldList) {
-            for (BuildConfigClassField classField : classFieldList) {
-                String fieldValue = classField.getValue();
-                if (null != fieldValue && 0 < fieldValue.trim().length() && value.equals(fieldValue)) {
-                    return classField;
-                }
+    /**
+     * Here init static final fields. The code does not use any local variable and leaves the stack empty,
+     * so it is safe to put it in front of the existing code and frames.
+     */
+    private void initStaticFields(MethodVisitor mv) {
+        for (FieldNode field : stringFieldNodeList) {
+            String stringValue = (String) field.value;
+            if (!concatEmitter.emit(mv, stringValue)) {
+                mv.visitLdcInsn(stringValue);
             }
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, owner, field.name, field.desc);
         }
-        return null;
     }
 }
@@ -0,0 +1,50 @@
+package com.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The BuildConfigDelegate of the specs. The rewritten classes call it instead of the generated one.
+ * It only has the members the rewritten classes use, and it records every getString call.
+ */
+public final class BuildConfigDelegate {
+    public static int generation;
+    private static final Map<String, String> values = new HashMap<>();
+    private static final List<String> calls = new ArrayList<>();
+
+    public static String getString(String module, String key, String defaultValue) {
+        calls.add(module + "#" + key);
+        String value = values.get(module + "#" + key);
+        return null != value ? value : defaultValue;
+    }
+
+    /**
+     * Change the value of a field the way a flavor switch does, the cached sites see the new generation.
+     */
+    public static void setValue(String module, String key, String value) {
+        values.put(module + "#" + key, value);
+        generation++;
+    }
+
+    public static List<String> getCalls() {
+        return calls;
+    }
+
+    public static void reset() {
+        values.clear();
+        calls.clear();
+        generation++;
+    }
+
+    public static final class Slot {
+        public final int generation;
+        public final String value;
+
+        public Slot(int generation, String value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.android.plugin.buildconfig
+
+import com.android.plugin.buildconfig.task.BuildConfigAssetWriter
+import com.android.plugin.buildconfig.task.BuildConfigDelegateGenerator
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import javax.tools.ToolProvider
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Modifier
+
+class BuildConfigAssetWriterSpec extends Specification {
+    @Rule
+    TemporaryFolder testProjectDir = new TemporaryFolder(new File("build/tmp"))
+
+    def "test write the unwrapped values to the string table"() {
+        given:
+        def file = new File(testProjectDir.root, "lib.bin")
+        def url = new BuildConfigClassField("lib", "URL", "String", "`BuildConfig#lib#https://help.com`",
+                BuildConfigClassField.NO_ID)
+        def debug = new BuildConfigClassField("lib", "DEBUG", "boolean", "true", BuildConfigClassField.NO_ID)
+        def variantFields = ["debug": [url, debug], "release": [url]]
+        when:
+        BuildConfigAssetWriter.INSTANCE.write("lib", variantFields, file)
+        def input = new DataInputStream(new FileInputStream(file))
+        def magic = input.readInt()
+        def length = input.readInt()
+        def version = input.readUnsignedShort()
+        def strings = (0..<input.readInt()).collect {
+            def bytes = new byte[input.readInt()]
+            input.readFully(bytes)
+            new String(bytes, "UTF-8")
+        }
+        def module = strings[input.readInt()]
+        def flavorCount = input.readInt()
+        input.close()
+        then:
+        magic == BuildConfigConstants.ASSET_MAGIC
+        length == file.length() - 8
+        version == BuildConfigConstants.ASSET_VERSION
+        strings == ["lib", "debug", "URL", "https://help.com", "DEBUG", "release"]
+        module == "lib"
+        flavorCount == 2
+    }
+
+    def "test decode the flavor index and the records of every tag"() {
+        given:
+        def file = new File(testProjectDir.root, "app.bin")
+        when:
+        BuildConfigAssetWriter.INSTANCE.write("app", createVariantFields("app"), file)
+        def asset = readAsset(file)
+        then:
+        asset.module == "app"
+        //The offsets are relative to the first field, each flavor starts right after the previous one.
+        //A record is name(u4) tag(u1) and the value: BOOLEAN 1, INT 4, LONG 8, OTHER 8 and STRING 4 bytes.
+        asset.flavors.collect { [it.flavor, it.offset, it.count] } == [
+                ["debug", 0, 6],
+                ["staging", 6 * 5 + 1 + 4 + 8 + 8 + 8 + 4, 1],
+                ["release", 6 * 5 + 1 + 4 + 8 + 8 + 8 + 4 + 5 + 4, 0]
+        ]
+        asset.flavors[0].fields == [
+                ["DEBUG", BuildConfigConstants.ASSET_TAG_BOOLEAN, true],
+                ["VERSION", BuildConfigConstants.ASSET_TAG_INT, 42],
+                ["TIMESTAMP", BuildConfigConstants.ASSET_TAG_LONG, 1600000000000L],
+                ["FLAGS", BuildConfigConstants.ASSET_TAG_OTHER, ["int", "1 << 4"]],
+                ["RATIO", BuildConfigConstants.ASSET_TAG_OTHER, ["float", "1.5f"]],
+                ["SERVER_URL", BuildConfigConstants.ASSET_TAG_STRING, "https://debug.app.com"]
+        ]
+        asset.flavors[1].fields == [["SERVER_URL", BuildConfigConstants.ASSET_TAG_STRING, "https://staging.app.com"]]
+        asset.flavors[2].fields == []
+        //Nothing is left after the last record.
+        asset.remaining == 0
+    }
+
+    def "test the generated delegate reads the String fields of every flavor"() {
+        given:
+        def assetsDir = testProjectDir.newFolder("assets")
+        writeAssets(assetsDir)
+        def delegate = compileDelegate()
+        def context = delegate.classLoader.loadClass("android.content.Context").newInstance(assetsDir)
+        when:
+        delegate.getMethod("initialModuleBuildConfig", context.getClass()).invoke(null, context)
+        def values = ["debug", "staging", "release"].collectEntries { flavor ->
+            delegate.getMethod("setCurrentFlavor", String).invoke(null, flavor)
+            [(flavor): ["app", "lib"].collect { module ->
+                delegate.getMethod("getString", String, String, String).invoke(null, module, "SERVER_URL", "default")
+            }]
+        }
+        then:
+        delegate.getMethod("getFlavorSet").invoke(null) == ["debug", "staging", "release"] as Set
+        values == [
+                "debug"  : ["https://debug.app.com", "https://debug.lib.com"],
+                "staging": ["https://staging.app.com", "https://staging.lib.com"],
+                "release": ["default", "default"]
+        ]
+        //The records of the other tags are skipped, only the String fields are kept.
+        delegate.getMethod("getFlavorClassFields").invoke(null).collectEntries { module, classFields ->
+            [(module): classFields.size()]
+        } == ["app": 2, "lib": 2]
+    }
+
+    def "test the generated delegate rejects an asset of another version"() {
+        given:
+        def assetsDir = testProjectDir.newFolder("assets")
+        writeAssets(assetsDir)
+        def file = new File(assetsDir, BuildConfigConstants.ASSET_FOLDER + "/app.bin")
+        def bytes = file.bytes
+        //magic(u4) length(u4) version(u2)
+        bytes[9] = (byte) (BuildConfigConstants.ASSET_VERSION + 1)
+        file.bytes = bytes
+        def delegate = compileDelegate()
+        def context = delegate.classLoader.loadClass("android.content.Context").newInstance(assetsDir)
+        when:
+        delegate.getMethod("initialModuleBuildConfig", context.getClass()).invoke(null, context)
+        then:
+        def e = thrown(InvocationTargetException)
+        e.cause instanceof IOException
+        e.cause.message == "Unsupported build config asset version: buildconfig/app.bin"
+    }
+
+    def "test the generated delegate counts every flavor change of every thread"() {
+        given:
+        def delegate = compileDelegate()
+        def setCurrentFlavor = delegate.getMethod("setCurrentFlavor", String)
+        def contextClass = delegate.classLoader.loadClass("android.content.Context")
+        def generation = delegate.getField("generation")
+        def startGeneration = generation.getInt(null)
+        when:
+        def threads = (0..<8).collect { index ->
+            Thread.start {
+                1000.times { setCurrentFlavor.invoke(null, 0 == index % 2 ? "debug" : "release") }
+            }
+        }
+        threads*.join()
+        then:
+        //generation++ only happens under the class lock, the tables are read without it.
+        generation.getInt(null) == startGeneration + 8000
+        Modifier.isSynchronized(setCurrentFlavor.modifiers)
+        Modifier.isSynchronized(delegate.getMethod("initialModuleBuildConfig", contextClass).modifiers)
+        Modifier.isVolatile(generation.modifiers)
+        Modifier.isVolatile(delegate.getDeclaredField("currentFieldTable").modifiers)
+        Modifier.isVolatile(delegate.getDeclaredField("currentFlavor").modifiers)
+    }
+
+    /**
+     * The debug flavor has a field of every tag, the String field is the last one,
+     * so it is only read correctly if all the other records are skipped by their size.
+     */
+    private static Map<String, List<BuildConfigClassField>> createVariantFields(String module) {
+        def field = { String name, String type, String value ->
+            new BuildConfigClassField(module, name, type, value, BuildConfigClassField.NO_ID)
+        }
+        def url = { String flavor -> "`BuildConfig#${module}#https://${flavor}.${module}.com`".toString() }
+        return [
+                "debug"  : [
+                        field("DEBUG", "boolean", "true"),
+                        field("VERSION", "int", "42"),
+                        field("TIMESTAMP", "long", "1600000000000L"),
+                        field("FLAGS", "int", "1 << 4"),
+                        field("RATIO", "float", "1.5f"),
+                        field("SERVER_URL", "String", url("debug"))
+                ],
+                "staging": [field("SERVER_URL", "String", url("staging"))],
+                "release": []
+        ]
+    }
+
+    private static void writeAssets(File assetsDir) {
+        def folder = new File(assetsDir, BuildConfigConstants.ASSET_FOLDER)
+        folder.mkdirs()
+        ["app", "lib"].each { module ->
+            def file = new File(folder, module + BuildConfigConstants.ASSET_FILE_EXTENSION)
+            BuildConfigAssetWriter.INSTANCE.write(module, createVariantFields(module), file)
+        }
+    }
+
+    /**
+     * Decode the whole asset the way the format is documented in {@link BuildConfigAssetWriter}.
+     */
+    private static Map<String, Object> readAsset(File file) {
+        def input = new DataInputStream(new ByteArrayInputStream(file.bytes))
+        assert input.readInt() == BuildConfigConstants.ASSET_MAGIC
+        assert input.readInt() == file.length() - 8
+        assert input.readUnsignedShort() == BuildConfigConstants.ASSET_VERSION
+        def strings = (0..<input.readInt()).collect {
+            def bytes = new byte[input.readInt()]
+            input.readFully(bytes)
+            new String(bytes, "UTF-8")
+        }
+        def module = strings[input.readInt()]
+        def flavors = (0..<input.readInt()).collect {
+            [flavor: strings[input.readInt()], offset: input.readInt(), count: input.readInt()]
+        }
+        //The records follow the index directly, read them all to check the offsets.
+        def fieldBytes = input.bytes
+        flavors.each { flavor ->
+            def fieldInput = new DataInputStream(new ByteArrayInputStream(fieldBytes, flavor.offset,
+                    fieldBytes.length - flavor.offset))
+            flavor.fields = (0..<flavor.count).collect {
+                def name = strings[fieldInput.readInt()]
+                def tag = fieldInput.readUnsignedByte()
+                def value
+                switch (tag) {
+                    case BuildConfigConstants.ASSET_TAG_STRING: value = strings[fieldInput.readInt()]; break
+                    case BuildConfigConstants.ASSET_TAG_BOOLEAN: value = fieldInput.readBoolean(); break
+                    case BuildConfigConstants.ASSET_TAG_INT: value = fieldInput.readInt(); break
+                    case BuildConfigConstants.ASSET_TAG_LONG: value = fieldInput.readLong(); break
+                    default: value = [strings[fieldInput.readInt()], strings[fieldInput.readInt()]]
+                }
+                [name, tag, value]
+            }
+        }
+        def last = flavors.max { it.offset }
+        def lastRecordsEnd = last.offset + recordsLength(last.fields)
+        return [module: module, flavors: flavors, remaining: fieldBytes.length - lastRecordsEnd]
+    }
+
+    private static int recordsLength(List<List<Object>> fields) {
+        return fields.sum(0) { field ->
+            def tag = field[1]
+            5 + (BuildConfigConstants.ASSET_TAG_BOOLEAN == tag ? 1 : BuildConfigConstants.ASSET_TAG_STRING == tag
+                    || BuildConfigConstants.ASSET_TAG_INT == tag ? 4 : 8)
+        } as int
+    }
+
+    /**
+     * Generate com.test.BuildConfigDelegate and compile it with the Android classes it needs.
+     * The Android classes are minimal stubs, the assets are read from a folder.
+     */
+    private Class<?> compileDelegate() {
+        def sourceDir = testProjectDir.newFolder("src")
+        def classesDir = testProjectDir.newFolder("classes")
+        def sourceFile = new BuildConfigDelegateGenerator().generateBuildConfig("com.test", "debug",
+                "BuildConfigDelegate", sourceDir)
+        def stubs = [
+                "android/content/Context.java"         : """package android.content;
+public class Context {
+    private final android.content.res.AssetManager assets;
+    public Context(java.io.File dir) { assets = new android.content.res.AssetManager(dir); }
+    public android.content.res.AssetManager getAssets() { return assets; }
+}""",
+                "android/content/res/AssetManager.java": """package android.content.res;
+public class AssetManager {
+    private final java.io.File dir;
+    public AssetManager(java.io.File dir) { this.dir = dir; }
+    public String[] list(String path) { return new java.io.File(dir, path).list(); }
+    public java.io.InputStream open(String path) throws java.io.IOException {
+        return new java.io.FileInputStream(new java.io.File(dir, path));
+    }
+}""",
+                "org/json/JSONException.java"          : """package org.json;
+public class JSONException extends Exception {
+}"""
+        ]
+        def sources = [new File(sourceDir, "com/test/BuildConfigDelegate.java")]
+        stubs.each { path, source ->
+            def stubFile = new File(sourceDir, path)
+            stubFile.parentFile.mkdirs()
+            stubFile.text = source
+            sources += stubFile
+        }
+        assert null != sourceFile
+        def compiler = ToolProvider.getSystemJavaCompiler()
+        assert 0 == compiler.run(null, null, null, (["-d", classesDir.path] + sources*.path) as String[])
+        def classLoader = new URLClassLoader([classesDir.toURI().toURL()] as URL[], getClass().classLoader)
+        return classLoader.loadClass("com.test.BuildConfigDelegate")
+    }
+}
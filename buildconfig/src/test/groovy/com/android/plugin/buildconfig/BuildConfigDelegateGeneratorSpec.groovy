@@ -19,5 +19,20 @@ class BuildConfigDelegateGeneratorSpec extends Specification {
         null != sourceFile
     }
 
-
+    def "test generate the embedded fields"() {
+        given:
+        String packageName = "com.android.plugin.buildconfig"
+        String className = "BuildConfigGlobal"
+        def classField = new BuildConfigClassField("app", "SERVER_URL", "String", "`BuildConfig#app#https://help.com`",
+                BuildConfigClassField.NO_ID)
+        def embeddedFields = ["app": ["androidDev": [classField]]]
+        BuildConfigDelegateGenerator buildConfigGlobalGenerator = new BuildConfigDelegateGenerator()
+        buildConfigGlobalGenerator.generateBuildConfig(packageName, "androidDev", className, testProjectDir.root,
+                false, false, embeddedFields)
+        def source = new File(testProjectDir.root, packageName.replace('.', '/') + "/" + className + ".java").text
+        expect:
+        source.contains("EmbeddedFields0")
+        source.contains("\"androidDev\", \"app\", \"SERVER_URL\", \"https://help.com\"")
+        !source.contains("readBuildConfig")
+    }
 }
@@ -0,0 +1,56 @@
+package com.android.plugin.buildconfig
+
+import com.android.plugin.buildconfig.visitor.BuildConfigMarkerScanner
+import spock.lang.Specification
+
+class BuildConfigMarkerScannerSpec extends Specification {
+
+    def "test find the same markers as the pattern"(String text) {
+        given:
+        def scanner = new BuildConfigMarkerScanner().reset(text)
+        def markers = []
+        while (scanner.find()) {
+            markers << [text.substring(scanner.start(), scanner.end()),
+                        text.substring(scanner.moduleStart(), scanner.moduleEnd()),
+                        text.substring(scanner.valueStart(), scanner.valueEnd())]
+        }
+        def expected = []
+        def matcher = BuildConfigConstants.BUILD_CONFIG_VALUE_PATTERN.matcher(text)
+        while (matcher.find()) {
+            expected << [matcher.group(), matcher.group("module"), matcher.group("value")]
+        }
+        expect:
+        markers == expected
+
+        where:
+        text                                                                  | _
+        "http://test.server"                                                  | _
+        "`BuildConfig#app#http://test.server`"                                | _
+        "Url1:`BuildConfig#app#value1` Url2:`BuildConfig#my-lib#value2` end"  | _
+        "`BuildConfig#`BuildConfig#app#value`"                                | _
+        "`BuildConfig#app##`"                                                 | _
+        "`BuildConfig#app#``"                                                 | _
+        "`BuildConfig#app#line\nbreak` `BuildConfig#app#ok`"                  | _
+        "`BuildConfig#app.module#value`"                                      | _
+        "`BuildConfig#app#unclosed"                                           | _
+    }
+
+    def "test find the compact markers"(String text, List<List<Object>> expected) {
+        given:
+        def scanner = new BuildConfigMarkerScanner().reset(text)
+        def markers = []
+        while (scanner.find()) {
+            markers << [text.substring(scanner.start(), scanner.end()), scanner.fieldId()]
+        }
+        expect:
+        markers == expected
+
+        where:
+        text                                                        | expected
+        "\uE00012\uE000"                                            | [["\uE00012\uE000", 12]]
+        "Url:\uE0001\uE000/\uE0002\uE000 end"                       | [["\uE0001\uE000", 1], ["\uE0002\uE000", 2]]
+        "`BuildConfig#app#value` \uE0003\uE000"                     | [["`BuildConfig#app#value`", BuildConfigClassField.NO_ID], ["\uE0003\uE000", 3]]
+        "\uE000\uE000 \uE000a\uE000 \uE0001234567890\uE000 \uE0004" | []
+        "\uE000\uE0005\uE000"                                       | [["\uE0005\uE000", 5]]
+    }
+}
@@ -0,0 +1,102 @@
+package com.android.plugin.buildconfig
+
+import com.android.BuildConfigDelegate
+import com.android.plugin.buildconfig.visitor.StringReplaceClassInvitor
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.FrameNode
+import spock.lang.Shared
+import spock.lang.Specification
+
+class CallSiteCacheWriterSpec extends Specification {
+    private static final String MARKER = "`BuildConfig#app#https://help.com`"
+    @Shared
+    private def fieldIndex = new BuildConfigFieldIndex([
+            new BuildConfigClassField("app", "SERVER_URL", "String", MARKER, BuildConfigClassField.NO_ID)
+    ])
+
+    def setup() {
+        BuildConfigDelegate.reset()
+        BuildConfigDelegate.setValue("app", "SERVER_URL", "https://help.com")
+    }
+
+    def "test write a slot and a site method for each site"() {
+        given:
+        def classNode = TestClasses.readClass(rewrite(createClass(Opcodes.V1_8, 2)))
+        def synthetic = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC
+        expect:
+        classNode.fields.collect { it.name } == ["buildConfig\$slot\$0", "buildConfig\$slot\$1"]
+        classNode.fields.every { it.access == synthetic && it.desc == "Lcom/android/BuildConfigDelegate\$Slot;" }
+        def siteMethods = classNode.methods.findAll { it.name.startsWith("buildConfig") }
+        siteMethods.collect { it.name } == ["buildConfig\$site\$0", "buildConfig\$site\$1"]
+        siteMethods.every { it.access == synthetic && it.desc == "()Ljava/lang/String;" }
+    }
+
+    def "test write the frame of the site method since Java 6"(int version, int frameCount) {
+        given:
+        def rewrittenBytes = rewrite(createClass(version, 1))
+        def siteMethod = TestClasses.readClass(rewrittenBytes).methods.find { it.name == "buildConfig\$site\$0" }
+        when:
+        def clazz = new TestClassLoader().addClass("com.test.CallSite", rewrittenBytes).load("com.test.CallSite")
+        then:
+        siteMethod.instructions.toArray().count { it instanceof FrameNode } == frameCount
+        clazz.getMethod("value").invoke(null) == "https://help.com"
+
+        where:
+        version         | frameCount
+        Opcodes.V1_5    | 0
+        Opcodes.V1_6    | 1
+        Opcodes.V1_8    | 1
+    }
+
+    def "test the slot is invalid after the generation changes"() {
+        given:
+        def rewrittenBytes = rewrite(createClass(Opcodes.V1_8, 1))
+        def clazz = new TestClassLoader().addClass("com.test.CallSite", rewrittenBytes).load("com.test.CallSite")
+        def value = clazz.getMethod("value")
+        when:
+        def first = value.invoke(null)
+        def second = value.invoke(null)
+        then:
+        first == "https://help.com"
+        second == first
+        //The delegate is called once, the second call reads the slot.
+        BuildConfigDelegate.calls.size() == 1
+        when:
+        //Switch the flavor
+        BuildConfigDelegate.setValue("app", "SERVER_URL", "https://flavor.com")
+        def third = value.invoke(null)
+        def fourth = value.invoke(null)
+        then:
+        third == "https://flavor.com"
+        fourth == third
+        BuildConfigDelegate.calls.size() == 2
+    }
+
+    private byte[] rewrite(byte[] classBytes) {
+        return TestClasses.rewrite(classBytes) { ClassReader classReader, ClassWriter classWriter ->
+            new StringReplaceClassInvitor(fieldIndex, classWriter)
+        }
+    }
+
+    /**
+     * com.test.CallSite with the static method value, it returns the marker sites joined by "|".
+     * Each site is a constant string of its own.
+     */
+    private static byte[] createClass(int version, int siteCount) {
+        return TestClasses.createClass(version, "com/test/CallSite") { ClassWriter cw ->
+            TestClasses.createMethod(cw, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", "()Ljava/lang/String;") {
+                MethodVisitor mv ->
+                    mv.visitLdcInsn(MARKER)
+                    for (int i = 1; i < siteCount; i++) {
+                        mv.visitLdcInsn("|" + MARKER)
+                        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat",
+                                "(Ljava/lang/String;)Ljava/lang/String;", false)
+                    }
+                    mv.visitInsn(Opcodes.ARETURN)
+            }
+        }
+    }
+}
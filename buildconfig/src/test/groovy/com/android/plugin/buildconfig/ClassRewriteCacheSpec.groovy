@@ -0,0 +1,72 @@
+package com.android.plugin.buildconfig
+
+import com.android.plugin.buildconfig.engine.ClassRewriteCache
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+class ClassRewriteCacheSpec extends Specification {
+    @Rule
+    TemporaryFolder testProjectDir = new TemporaryFolder(new File("build/tmp"))
+
+    def "test return the cached bytes without rewriting the class"() {
+        given:
+        def cache = new ClassRewriteCache(testProjectDir.root, 1024 * 1024, "fields")
+        int rewriteCount = 0
+        def rewriter = { byte[] bytes ->
+            rewriteCount++
+            return [1, 2, 3] as byte[]
+        }
+        when:
+        def first = cache.getOrRewrite([0] as byte[], rewriter)
+        def second = cache.getOrRewrite([0] as byte[], rewriter)
+        then:
+        first == [1, 2, 3] as byte[]
+        second == [1, 2, 3] as byte[]
+        rewriteCount == 1
+        cache.getHitCount() == 1
+        cache.getMissCount() == 1
+    }
+
+    def "test the field table is part of the key"() {
+        given:
+        def rewriter = { byte[] bytes -> return bytes }
+        new ClassRewriteCache(testProjectDir.root, 1024 * 1024, "fields1").getOrRewrite([0] as byte[], rewriter)
+        def cache = new ClassRewriteCache(testProjectDir.root, 1024 * 1024, "fields2")
+        when:
+        cache.getOrRewrite([0] as byte[], rewriter)
+        then:
+        cache.getHitCount() == 0
+        cache.getMissCount() == 1
+    }
+
+    def "test trim the least recently used entries"() {
+        given:
+        def cache = new ClassRewriteCache(testProjectDir.root, 10, "fields")
+        def rewriter = { byte[] bytes -> return new byte[8] }
+        cache.getOrRewrite([0] as byte[], rewriter)
+        cache.getOrRewrite([1] as byte[], rewriter)
+        when:
+        cache.trim()
+        then:
+        testProjectDir.root.listFiles().collectMany { it.listFiles().toList() }.size() == 1
+    }
+
+    def "test only trim after the run stored new entries"() {
+        given:
+        def rewriter = { byte[] bytes -> return new byte[8] }
+        def firstRun = new ClassRewriteCache(testProjectDir.root, 1024 * 1024, "fields")
+        firstRun.getOrRewrite([0] as byte[], rewriter)
+        firstRun.getOrRewrite([1] as byte[], rewriter)
+        def cache = new ClassRewriteCache(testProjectDir.root, 10, "fields")
+        when:
+        cache.getOrRewrite([0] as byte[], rewriter)
+        cache.trim()
+        def afterHits = testProjectDir.root.listFiles().collectMany { it.listFiles().toList() }.size()
+        cache.getOrRewrite([2] as byte[], rewriter)
+        cache.trim()
+        then:
+        afterHits == 2
+        testProjectDir.root.listFiles().collectMany { it.listFiles().toList() }.size() == 1
+    }
+}
@@ -0,0 +1,223 @@
+package com.android.plugin.buildconfig
+
+import com.android.BuildConfigDelegate
+import com.android.plugin.buildconfig.engine.ClassRewriter
+import com.android.plugin.buildconfig.engine.RewriteOptions
+import com.android.plugin.buildconfig.engine.RewriteReport
+import com.android.plugin.buildconfig.visitor.MarkerUnwrapClassVisitor
+import com.android.plugin.buildconfig.visitor.StringReplaceClassInvitor
+import groovy.json.JsonSlurper
+import org.gradle.api.services.BuildServiceParameters
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Handle
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.InvokeDynamicInsnNode
+import org.objectweb.asm.tree.LdcInsnNode
+import spock.lang.Shared
+import spock.lang.Specification
+
+class CompactMarkerSpec extends Specification {
+    private static final String DELIMITER = String.valueOf(BuildConfigConstants.COMPACT_MARKER_DELIMITER)
+    private static final String SOURCE_DELIMITER = BuildConfigConstants.COMPACT_MARKER_SOURCE_DELIMITER
+    @Shared
+    private def fieldIndex = new BuildConfigFieldIndex([
+            new BuildConfigClassField("app", "SERVER_URL", "String", "`BuildConfig#app#https://help.com`", 1),
+            new BuildConfigClassField("lib", "VERSION", "String", "`BuildConfig#lib#v2`", 3)
+    ])
+    @Shared
+    private def fieldIndexWithoutIds = new BuildConfigFieldIndex([
+            new BuildConfigClassField("app", "SERVER_URL", "String", "`BuildConfig#app#https://help.com`",
+                    BuildConfigClassField.NO_ID)
+    ])
+    @Rule
+    TemporaryFolder testProjectDir = new TemporaryFolder(new File("build/tmp"))
+
+    def setup() {
+        BuildConfigDelegate.reset()
+    }
+
+    def "test the same marker always gets the same compact marker"() {
+        given:
+        def fieldService = createFieldService()
+        expect:
+        fieldService.compactMarker("`BuildConfig#app#a`") == SOURCE_DELIMITER + "1" + SOURCE_DELIMITER
+        fieldService.compactMarker("`BuildConfig#app#b`") == SOURCE_DELIMITER + "2" + SOURCE_DELIMITER
+        fieldService.compactMarker("`BuildConfig#app#a`") == SOURCE_DELIMITER + "1" + SOURCE_DELIMITER
+    }
+
+    def "test the compact ids follow the module and the field name"(List<List<String>> registrations) {
+        given:
+        def fieldService = createFieldService()
+        def compactMarkers = [:]
+        registrations.each { registration ->
+            def (module, name, marker) = registration
+            fieldService.registerCompactMarker(module, name, marker) { String compactMarker ->
+                compactMarkers[module + "#" + name] = compactMarker
+            }
+        }
+        when:
+        fieldService.assignCompactMarkers()
+        then:
+        compactMarkers == [
+                "app#A": SOURCE_DELIMITER + "1" + SOURCE_DELIMITER,
+                "app#B": SOURCE_DELIMITER + "2" + SOURCE_DELIMITER,
+                "lib#A": SOURCE_DELIMITER + "3" + SOURCE_DELIMITER
+        ]
+
+        where:
+        registrations << [
+                [["app", "A", "`BuildConfig#app#a`"], ["app", "B", "`BuildConfig#app#b`"], ["lib", "A", "`BuildConfig#lib#a`"]],
+                [["lib", "A", "`BuildConfig#lib#a`"], ["app", "B", "`BuildConfig#app#b`"], ["app", "A", "`BuildConfig#app#a`"]]
+        ]
+    }
+
+    def "test a marker shared by the variants is only numbered once"() {
+        given:
+        def fieldService = createFieldService()
+        def compactMarkers = []
+        2.times {
+            fieldService.registerCompactMarker("app", "A", "`BuildConfig#app#a`") { String compactMarker ->
+                compactMarkers << compactMarker
+            }
+        }
+        when:
+        fieldService.assignCompactMarkers()
+        then:
+        compactMarkers == [SOURCE_DELIMITER + "1" + SOURCE_DELIMITER] * 2
+        fieldService.compactMarker("`BuildConfig#app#b`") == SOURCE_DELIMITER + "2" + SOURCE_DELIMITER
+    }
+
+    def "test find the field by the compact id"() {
+        expect:
+        fieldIndex.findById(1).name == "SERVER_URL"
+        fieldIndex.findById(3).name == "VERSION"
+        null == fieldIndex.findById(0)
+        null == fieldIndex.findById(2)
+        null == fieldIndex.findById(4)
+        null == fieldIndex.findById(-1)
+        fieldIndex.findByMarker(DELIMITER + "3" + DELIMITER).name == "VERSION"
+        fieldIndex.findByMarker("`BuildConfig#app#https://help.com`").name == "SERVER_URL"
+        null == fieldIndex.findByMarker(DELIMITER + "x" + DELIMITER)
+    }
+
+    def "test the first field wins if two fields share an id"() {
+        given:
+        def fieldIndex = new BuildConfigFieldIndex([
+                new BuildConfigClassField("app", "A", "String", "`BuildConfig#app#a`", 1),
+                new BuildConfigClassField("app", "B", "String", "`BuildConfig#app#b`", 1)
+        ])
+        expect:
+        fieldIndex.findById(1).name == "A"
+    }
+
+    def "test unwrap the compact markers of the field constants and the constant strings"() {
+        given:
+        def classBytes = createClass(Opcodes.V1_8, DELIMITER + "1" + DELIMITER) { MethodVisitor mv ->
+            mv.visitLdcInsn("Url:" + DELIMITER + "1" + DELIMITER + "/" + DELIMITER + "9" + DELIMITER +
+                    " `BuildConfig#lib#v2`")
+        }
+        when:
+        def clazz = new TestClassLoader().addClass("com.test.CompactMarker", unwrap(classBytes)).load("com.test.CompactMarker")
+        then:
+        clazz.getField("URL").get(null) == "https://help.com"
+        //The unknown compact marker stays as it is.
+        clazz.getMethod("value").invoke(null) == "Url:https://help.com/" + DELIMITER + "9" + DELIMITER + " v2"
+    }
+
+    def "test unwrap the compact markers of the invokedynamic constants"() {
+        given:
+        def bootstrap = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/StringConcatFactory",
+                "makeConcatWithConstants", "(Ljava/lang/invoke/MethodHandles\$Lookup;Ljava/lang/String;" +
+                "Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false)
+        def classBytes = createClass(Opcodes.V9, "") { MethodVisitor mv ->
+            mv.visitLdcInsn("Url:")
+            mv.visitInvokeDynamicInsn("makeConcatWithConstants", "(Ljava/lang/String;)Ljava/lang/String;", bootstrap,
+                    "\u0001" + DELIMITER + "3" + DELIMITER)
+        }
+        when:
+        //The class is not loaded, the test may run on Java 8 without the StringConcatFactory.
+        def invokeDynamic = TestClasses.readClass(unwrap(classBytes)).methods.find { it.name == "value" }.instructions.toArray()
+                .find { it instanceof InvokeDynamicInsnNode } as InvokeDynamicInsnNode
+        then:
+        invokeDynamic.bsmArgs.toList() == ["\u0001v2"]
+    }
+
+    def "test the delegate call gets the plain value as the default value"(String constant) {
+        given:
+        def classBytes = createClass(Opcodes.V1_8, "") { MethodVisitor mv -> mv.visitLdcInsn(constant) }
+        def rewrittenBytes = TestClasses.rewrite(classBytes) { ClassReader classReader, ClassWriter classWriter ->
+            new StringReplaceClassInvitor(fieldIndex, classWriter)
+        }
+        def classNode = TestClasses.readClass(rewrittenBytes)
+        when:
+        def clazz = new TestClassLoader().addClass("com.test.CompactMarker", rewrittenBytes).load("com.test.CompactMarker")
+        then:
+        //The delegate does not know the field, so it returns the default value.
+        clazz.getMethod("value").invoke(null) == "https://help.com"
+        BuildConfigDelegate.calls == ["app#SERVER_URL"]
+        classNode.methods.every { method ->
+            method.instructions.toArray().findAll { it instanceof LdcInsnNode }.every { LdcInsnNode ldc ->
+                !ldc.cst.toString().contains("`") && !ldc.cst.toString().contains(DELIMITER)
+            }
+        }
+
+        where:
+        constant                              | _
+        "`BuildConfig#app#https://help.com`"  | _
+        DELIMITER + "1" + DELIMITER           | _
+    }
+
+    def "test look for the compact marker delimiter only if the fields have ids"(BuildConfigFieldIndex index, int skipped) {
+        given:
+        //The constant has a U+E000 character of its own, but no marker.
+        def classBytes = createClass(Opcodes.V1_8, DELIMITER + "private") { MethodVisitor mv -> mv.visitLdcInsn("") }
+        def report = new RewriteReport("test", false, 1)
+        def reportFile = new File(testProjectDir.root, "report.json")
+        when:
+        new ClassRewriter(index, new RewriteOptions(), LazyStaticFieldIndex.EMPTY, null)
+                .rewrite(classBytes, "com/test/CompactMarker.class", report.newInput("input", "directory"))
+        report.write(reportFile)
+        then:
+        new JsonSlurper().parse(reportFile).classesSkipped == skipped
+
+        where:
+        index                | skipped
+        fieldIndex           | 0
+        fieldIndexWithoutIds | 1
+    }
+
+    private byte[] unwrap(byte[] classBytes) {
+        return TestClasses.rewrite(classBytes) { ClassReader classReader, ClassWriter classWriter ->
+            new MarkerUnwrapClassVisitor(fieldIndex, classWriter)
+        }
+    }
+
+    /**
+     * com.test.CompactMarker with the constant field URL and the static method value, the method body leaves the
+     * returned string on the stack.
+     */
+    private static byte[] createClass(int version, String fieldValue, Closure<?> body) {
+        return TestClasses.createClass(version, "com/test/CompactMarker") { ClassWriter cw ->
+            cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "URL", "Ljava/lang/String;",
+                    null, fieldValue).visitEnd()
+            TestClasses.createMethod(cw, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", "()Ljava/lang/String;") {
+                MethodVisitor mv ->
+                    body.call(mv)
+                    mv.visitInsn(Opcodes.ARETURN)
+            }
+        }
+    }
+
+    private static BuildConfigFieldService createFieldService() {
+        return new BuildConfigFieldService() {
+            @Override
+            BuildServiceParameters.None getParameters() {
+                return null
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.android.plugin.buildconfig
+
+import com.android.plugin.buildconfig.visitor.ConstantPoolScanner
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import spock.lang.Shared
+import spock.lang.Specification
+
+class ConstantPoolScannerSpec extends Specification {
+    @Shared
+    private def inputAssetsProvider = new TestAssetsProvider("Input")
+    /**
+     * Groovy passes a single byte array as the varargs array itself, so wrap it here.
+     */
+    @Shared
+    private def markerPrefix = [BuildConfigConstants.BUILD_CONFIG_MARKER_PREFIX.getBytes("UTF-8")] as byte[][]
+
+    def "test scan the constant string of the class"() {
+        expect:
+        ConstantPoolScanner.containsUtf8(createClass(constant), markerPrefix) == result
+
+        where:
+        constant                                 | result
+        "http://test.server"                     | false
+        "`BuildConfig#app#http://test.server`"   | true
+        "Url:`BuildConfig#library#value` suffix" | true
+    }
+
+    def "test skip the class without marker"() {
+        expect:
+        !ConstantPoolScanner.containsUtf8(inputAssetsProvider.getAssetFile("TestCase1.class").bytes, markerPrefix)
+    }
+
+    private static byte[] createClass(String constant) {
+        def classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+        classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "com/test/Constant", null, "java/lang/Object", null)
+        //The long constant takes two entries of the constant pool.
+        classWriter.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "ID", "J", null, 1L).visitEnd()
+        MethodVisitor mv = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value",
+                "()Ljava/lang/String;", null, null)
+        mv.visitCode()
+        mv.visitLdcInsn(constant)
+        mv.visitInsn(Opcodes.ARETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+        classWriter.visitEnd()
+        return classWriter.toByteArray()
+    }
+}
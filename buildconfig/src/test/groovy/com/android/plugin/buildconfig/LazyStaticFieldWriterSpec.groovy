@@ -0,0 +1,173 @@
+package com.android.plugin.buildconfig
+
+import com.android.BuildConfigDelegate
+import com.android.plugin.buildconfig.engine.LazyStaticFieldScanner
+import com.android.plugin.buildconfig.engine.RewriteEngine
+import com.android.plugin.buildconfig.engine.RewriteOptions
+import com.android.plugin.buildconfig.engine.RewriteReport
+import com.android.plugin.buildconfig.engine.RewriteRequest
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FieldInsnNode
+import org.objectweb.asm.tree.MethodInsnNode
+import spock.lang.Shared
+import spock.lang.Specification
+
+class LazyStaticFieldWriterSpec extends Specification {
+    private static final String MARKER = "`BuildConfig#app#https://help.com`"
+    private static final String STRING_DESCRIPTOR = "Ljava/lang/String;"
+    @Shared
+    private def fieldIndex = new BuildConfigFieldIndex([
+            new BuildConfigClassField("app", "SERVER_URL", "String", MARKER, BuildConfigClassField.NO_ID)
+    ])
+    @Rule
+    TemporaryFolder testProjectDir = new TemporaryFolder(new File("build/tmp"))
+
+    def setup() {
+        BuildConfigDelegate.reset()
+        BuildConfigDelegate.setValue("app", "SERVER_URL", "https://help.com")
+    }
+
+    def "test find the lazy fields and the subclasses that inherit them"() {
+        given:
+        def inputDir = writeClasses(testProjectDir.newFolder("input"))
+        when:
+        def lazyFieldIndex = new LazyStaticFieldScanner(fieldIndex).scan([inputDir])
+        then:
+        //The hiding class declares its own URL, the interface can not have a lazy field.
+        lazyFieldIndex.fields as List == ["com/test/Config.URL", "com/test/Sub.URL"]
+        lazyFieldIndex.owners as List == ["com/test/Config", "com/test/Sub"]
+    }
+
+    def "test the first read initializes the field and the later reads return the cached value"() {
+        given:
+        def outputDir = rewriteClasses()
+        def classLoader = new TestClassLoader()
+        ["Config", "Sub", "Reader"].each { name ->
+            classLoader.addClass("com.test." + name, new File(outputDir, "com/test/${name}.class").bytes)
+        }
+        def config = classLoader.load("com.test.Config")
+        def reader = classLoader.load("com.test.Reader")
+        def lazyField = config.getDeclaredField("buildConfig\$lazy\$URL")
+        lazyField.setAccessible(true)
+        expect:
+        //Loading the classes does not call the delegate, and only reflection sees the uninitialized field.
+        BuildConfigDelegate.calls.isEmpty()
+        config.getField("URL").get(null) == null
+        lazyField.get(null) == null
+        //The first read from another class initializes the field.
+        reader.getMethod("read").invoke(null) == "https://help.com"
+        BuildConfigDelegate.calls == ["app#SERVER_URL"]
+        lazyField.get(null) == "https://help.com"
+        //The later reads, from the class itself, another class or through the subclass, use the cached value.
+        config.getMethod("url").invoke(null) == "https://help.com"
+        reader.getMethod("read").invoke(null) == "https://help.com"
+        reader.getMethod("readThroughSub").invoke(null) == "https://help.com"
+        BuildConfigDelegate.calls == ["app#SERVER_URL"]
+    }
+
+    def "test the reads of the other classes are redirected to the accessor"() {
+        given:
+        def outputDir = rewriteClasses()
+        def config = TestClasses.readClass(new File(outputDir, "com/test/Config.class").bytes)
+        def reader = TestClasses.readClass(new File(outputDir, "com/test/Reader.class").bytes)
+        def hiding = TestClasses.readClass(new File(outputDir, "com/test/Hiding.class").bytes)
+        expect:
+        //The accessor has the visibility of the field, so the other classes are able to call it.
+        config.methods.find { it.name == "buildConfig\$get\$URL" }.access ==
+                (Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC)
+        config.fields.find { it.name == "buildConfig\$lazy\$URL" }.access ==
+                (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC)
+        instructions(reader, "read") == [Opcodes.INVOKESTATIC + " com/test/Config.buildConfig\$get\$URL"]
+        instructions(reader, "readThroughSub") == [Opcodes.INVOKESTATIC + " com/test/Sub.buildConfig\$get\$URL"]
+        //The read of the field that hides the lazy field is left alone.
+        instructions(reader, "readHiding") == [Opcodes.GETSTATIC + " com/test/Hiding.URL"]
+        hiding.methods.every { it.name != "buildConfig\$get\$URL" }
+    }
+
+    def "test the reads of the other classes are left alone without the lazy static fields"() {
+        given:
+        def inputDir = writeClasses(testProjectDir.newFolder("input"))
+        def outputDir = testProjectDir.newFolder("output")
+        when:
+        new RewriteEngine(fieldIndex, new RewriteOptions(), LazyStaticFieldIndex.EMPTY).rewrite(
+                [new RewriteRequest.Directory("input", inputDir, outputDir, null)],
+                new RewriteReport("test", false, 1))
+        then:
+        new File(outputDir, "com/test/Reader.class").bytes == new File(inputDir, "com/test/Reader.class").bytes
+    }
+
+    /**
+     * Scan and rewrite the classes the same way the transform does.
+     * The reader does not contain any marker, only the name of the owner of the lazy field lets it be rewritten.
+     */
+    private File rewriteClasses() {
+        def inputDir = writeClasses(testProjectDir.newFolder("input"))
+        def outputDir = testProjectDir.newFolder("output")
+        def options = new RewriteOptions(1, null, 0L, ConcatStrategy.AUTO, true, true, false, true)
+        def lazyFieldIndex = new LazyStaticFieldScanner(fieldIndex).scan([inputDir])
+        new RewriteEngine(fieldIndex, options, lazyFieldIndex).rewrite(
+                [new RewriteRequest.Directory("input", inputDir, outputDir, null)],
+                new RewriteReport("test", false, 1))
+        return outputDir
+    }
+
+    private static List<String> instructions(ClassNode classNode, String methodName) {
+        def method = classNode.methods.find { it.name == methodName }
+        return method.instructions.toArray().findResults { instruction ->
+            if (instruction instanceof FieldInsnNode) {
+                return instruction.opcode + " " + instruction.owner + "." + instruction.name
+            }
+            return instruction instanceof MethodInsnNode
+                    ? instruction.opcode + " " + instruction.owner + "." + instruction.name : null
+        }
+    }
+
+    /**
+     * com.test.Config has the lazy field URL and reads it itself, com.test.Sub inherits it and com.test.Hiding hides
+     * it with its own URL. com.test.Reader reads all of them, like a class that was not compiled by javac.
+     * com.test.Holder is an interface with a constant, which is never lazy.
+     */
+    private static File writeClasses(File inputDir) {
+        def constant = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL
+        writeClass(inputDir, "com/test/Config", "java/lang/Object", 0) { ClassWriter cw ->
+            cw.visitField(constant, "URL", STRING_DESCRIPTOR, null, MARKER).visitEnd()
+            createReadMethod(cw, "url", "com/test/Config", "URL")
+        }
+        writeClass(inputDir, "com/test/Sub", "com/test/Config", 0) {}
+        writeClass(inputDir, "com/test/Hiding", "com/test/Config", 0) { ClassWriter cw ->
+            cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "URL", STRING_DESCRIPTOR, null, null).visitEnd()
+        }
+        writeClass(inputDir, "com/test/Holder", "java/lang/Object", Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT) {
+            ClassWriter cw -> cw.visitField(constant, "URL", STRING_DESCRIPTOR, null, MARKER).visitEnd()
+        }
+        writeClass(inputDir, "com/test/Reader", "java/lang/Object", 0) { ClassWriter cw ->
+            createReadMethod(cw, "read", "com/test/Config", "URL")
+            createReadMethod(cw, "readThroughSub", "com/test/Sub", "URL")
+            createReadMethod(cw, "readHiding", "com/test/Hiding", "URL")
+        }
+        return inputDir
+    }
+
+    private static void writeClass(File inputDir, String name, String superName, int access, Closure<?> body) {
+        def classFile = new File(inputDir, name + ".class")
+        classFile.parentFile.mkdirs()
+        classFile.bytes = TestClasses.createClass(Opcodes.V1_8, access, name, superName, ClassWriter.COMPUTE_MAXS, body)
+    }
+
+    /**
+     * public static String <methodName>() { return <owner>.<field>; }
+     */
+    private static void createReadMethod(ClassWriter cw, String methodName, String owner, String field) {
+        TestClasses.createMethod(cw, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, methodName, "()" + STRING_DESCRIPTOR) {
+            MethodVisitor mv ->
+                mv.visitFieldInsn(Opcodes.GETSTATIC, owner, field, STRING_DESCRIPTOR)
+                mv.visitInsn(Opcodes.ARETURN)
+        }
+    }
+}
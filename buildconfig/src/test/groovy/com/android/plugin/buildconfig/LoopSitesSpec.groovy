@@ -0,0 +1,188 @@
+package com.android.plugin.buildconfig
+
+import com.android.BuildConfigDelegate
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
+import com.android.plugin.buildconfig.visitor.MethodMarkerScanner
+import com.android.plugin.buildconfig.visitor.StringReplaceClassInvitor
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import spock.lang.Shared
+import spock.lang.Specification
+
+class LoopSitesSpec extends Specification {
+    private static final String MARKER = "`BuildConfig#app#https://help.com`"
+    @Shared
+    private def fieldIndex = new BuildConfigFieldIndex([
+            new BuildConfigClassField("app", "SERVER_URL", "String", MARKER, BuildConfigClassField.NO_ID)
+    ])
+
+    def setup() {
+        BuildConfigDelegate.reset()
+        BuildConfigDelegate.setValue("app", "SERVER_URL", "https://help.com")
+    }
+
+    def "test only the site inside the loop is a loop site"() {
+        given:
+        def classBytes = createClass("value", "()Ljava/lang/String;") { MethodVisitor mv ->
+            visitSite(mv)
+            visitLoop(mv, 1, 3) { visitSite(mv) }
+            visitSite(mv)
+            mv.visitLdcInsn("")
+            mv.visitInsn(Opcodes.ARETURN)
+        }
+        expect:
+        findLoopSites(classBytes, "value()Ljava/lang/String;") == bitSet(1)
+    }
+
+    def "test find the sites of the nested loops"() {
+        given:
+        def classBytes = createClass("value", "()Ljava/lang/String;") { MethodVisitor mv ->
+            visitLoop(mv, 1, 3) {
+                visitSite(mv)
+                visitLoop(mv, 2, 4) { visitSite(mv) }
+                visitSite(mv)
+            }
+            visitSite(mv)
+            mv.visitLdcInsn("")
+            mv.visitInsn(Opcodes.ARETURN)
+        }
+        expect:
+        findLoopSites(classBytes, "value()Ljava/lang/String;") == bitSet(0, 1, 2)
+    }
+
+    def "test find the site of a loop that starts at the first instruction"() {
+        given:
+        //static { do { VALUE = marker; } while (VALUE.isEmpty()); }
+        def classBytes = createClass(BuildConfigConstants.CLINIT, "()V") { MethodVisitor mv ->
+            Label start = new Label()
+            mv.visitLabel(start)
+            mv.visitLdcInsn(MARKER)
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, "com/test/Loop", "VALUE", "Ljava/lang/String;")
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "com/test/Loop", "VALUE", "Ljava/lang/String;")
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "isEmpty", "()Z", false)
+            mv.visitJumpInsn(Opcodes.IFNE, start)
+            mv.visitInsn(Opcodes.RETURN)
+        }
+        expect:
+        findLoopSites(classBytes, "<clinit>()V") == bitSet(0)
+    }
+
+    def "test find the site of a loop that jumps back with goto_w"() {
+        given:
+        def classBytes = createClass("value", "()Ljava/lang/String;") { MethodVisitor mv ->
+            //do { marker } while (++counter < 3)
+            //The loop is too long for the offset of goto, so ASM writes a goto_w back to the site.
+            Label start = new Label()
+            Label end = new Label()
+            mv.visitInsn(Opcodes.ICONST_0)
+            mv.visitVarInsn(Opcodes.ISTORE, 1)
+            mv.visitLabel(start)
+            visitSite(mv)
+            40000.times { mv.visitInsn(Opcodes.NOP) }
+            mv.visitIincInsn(1, 1)
+            mv.visitVarInsn(Opcodes.ILOAD, 1)
+            mv.visitIntInsn(Opcodes.BIPUSH, 3)
+            mv.visitJumpInsn(Opcodes.IF_ICMPGE, end)
+            mv.visitJumpInsn(Opcodes.GOTO, start)
+            mv.visitLabel(end)
+            visitSite(mv)
+            mv.visitLdcInsn("")
+            mv.visitInsn(Opcodes.ARETURN)
+        }
+        expect:
+        containsGotoW(classBytes)
+        findLoopSites(classBytes, "value()Ljava/lang/String;") == bitSet(0)
+    }
+
+    def "test the loop site calls the delegate once without the call site cache"(boolean cacheLoopSites, int calls) {
+        given:
+        def classBytes = createClass("value", "()Ljava/lang/String;") { MethodVisitor mv ->
+            mv.visitLdcInsn("")
+            mv.visitVarInsn(Opcodes.ASTORE, 0)
+            visitLoop(mv, 1, 3) {
+                mv.visitLdcInsn(MARKER)
+                mv.visitVarInsn(Opcodes.ASTORE, 0)
+            }
+            mv.visitVarInsn(Opcodes.ALOAD, 0)
+            mv.visitInsn(Opcodes.ARETURN)
+        }
+        def classVisitor = null
+        def rewrittenBytes = TestClasses.rewrite(classBytes) { ClassReader classReader, ClassWriter classWriter ->
+            classVisitor = new StringReplaceClassInvitor(fieldIndex, ConcatStrategy.AUTO, false, cacheLoopSites,
+                    false, classReader, classWriter)
+        }
+        when:
+        def clazz = new TestClassLoader().addClass("com.test.Loop", rewrittenBytes).load("com.test.Loop")
+        then:
+        clazz.getMethod("value").invoke(null) == "https://help.com"
+        BuildConfigDelegate.calls.size() == calls
+        classVisitor.optimizedLoopSites == (cacheLoopSites ? ["value()Ljava/lang/String;#0"] : [])
+
+        where:
+        cacheLoopSites | calls
+        true           | 1
+        false          | 3
+    }
+
+    private static BitSet findLoopSites(byte[] classBytes, String method) {
+        return MethodMarkerScanner.findTouchedMethods(new ClassReader(classBytes), [] as Set).get(method)
+    }
+
+    private static BitSet bitSet(int... sites) {
+        def bitSet = new BitSet()
+        sites.each { bitSet.set(it) }
+        return bitSet
+    }
+
+    /**
+     * goto_w with a backward offset, the other bytes of the class are nops and small constant pool items.
+     */
+    private static boolean containsGotoW(byte[] classBytes) {
+        for (int i = 0; i < classBytes.length - 4; i++) {
+            if ((classBytes[i] & 0xFF) == 0xc8 && classBytes[i + 1] == (byte) 0xFF) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * The marker site leaves nothing on the stack.
+     */
+    private static void visitSite(MethodVisitor mv) {
+        mv.visitLdcInsn(MARKER)
+        mv.visitInsn(Opcodes.POP)
+    }
+
+    /**
+     * for (int counter = 0; counter < count; counter++) { body }
+     */
+    private static void visitLoop(MethodVisitor mv, int counter, int count, Closure<?> body) {
+        Label condition = new Label()
+        Label end = new Label()
+        mv.visitInsn(Opcodes.ICONST_0)
+        mv.visitVarInsn(Opcodes.ISTORE, counter)
+        mv.visitLabel(condition)
+        mv.visitVarInsn(Opcodes.ILOAD, counter)
+        mv.visitIntInsn(Opcodes.BIPUSH, count)
+        mv.visitJumpInsn(Opcodes.IF_ICMPGE, end)
+        body.call()
+        mv.visitIincInsn(counter, 1)
+        mv.visitJumpInsn(Opcodes.GOTO, condition)
+        mv.visitLabel(end)
+    }
+
+    /**
+     * com.test.Loop with the static field VALUE and one static method, the frames are computed.
+     */
+    private static byte[] createClass(String name, String descriptor, Closure<?> body) {
+        return TestClasses.createClass(Opcodes.V1_8, 0, "com/test/Loop", "java/lang/Object",
+                ClassWriter.COMPUTE_FRAMES) { ClassWriter cw ->
+            cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "VALUE", "Ljava/lang/String;", null, null).visitEnd()
+            TestClasses.createMethod(cw, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name, descriptor, body)
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.android.plugin.buildconfig
+
+import com.android.plugin.buildconfig.visitor.MethodMarkerScanner
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import spock.lang.Specification
+
+class MethodMarkerScannerSpec extends Specification {
+    private static final String MARKER = "`BuildConfig#app#https://help.com`"
+    private static final String METHOD = "value()Ljava/lang/String;"
+    private static final String UNTOUCHED_METHOD = "untouched()Ljava/lang/String;"
+
+    def "test find the marker after a switch at every alignment"(int padding, boolean lookupSwitch) {
+        given:
+        def classBytes = createClass { MethodVisitor mv ->
+            //Each nop moves the switch, so its operands need a different padding.
+            padding.times { mv.visitInsn(Opcodes.NOP) }
+            Label defaultLabel = new Label()
+            Label caseLabel = new Label()
+            mv.visitInsn(Opcodes.ICONST_0)
+            if (lookupSwitch) {
+                mv.visitLookupSwitchInsn(defaultLabel, [1, 100] as int[], [caseLabel, caseLabel] as Label[])
+            } else {
+                mv.visitTableSwitchInsn(0, 1, defaultLabel, caseLabel, caseLabel)
+            }
+            mv.visitLabel(caseLabel)
+            mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null)
+            mv.visitLabel(defaultLabel)
+            mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null)
+            mv.visitLdcInsn(MARKER)
+        }
+        when:
+        def touchedMethods = MethodMarkerScanner.findTouchedMethods(new ClassReader(classBytes), [] as Set)
+        then:
+        touchedMethods.keySet() == [METHOD] as Set
+
+        where:
+        padding | lookupSwitch
+        0       | false
+        1       | false
+        2       | false
+        3       | false
+        0       | true
+        1       | true
+        2       | true
+        3       | true
+    }
+
+    def "test find the marker after the wide instructions"() {
+        given:
+        def classBytes = createClass { MethodVisitor mv ->
+            //The local variable index and the increment do not fit in a byte, so they are wide.
+            mv.visitInsn(Opcodes.ICONST_0)
+            mv.visitVarInsn(Opcodes.ISTORE, 300)
+            mv.visitIincInsn(300, 1000)
+            mv.visitVarInsn(Opcodes.ILOAD, 300)
+            mv.visitInsn(Opcodes.POP)
+            mv.visitInsn(Opcodes.LCONST_0)
+            mv.visitVarInsn(Opcodes.LSTORE, 400)
+            mv.visitVarInsn(Opcodes.LLOAD, 400)
+            mv.visitInsn(Opcodes.POP2)
+            mv.visitLdcInsn(MARKER)
+        }
+        when:
+        def touchedMethods = MethodMarkerScanner.findTouchedMethods(new ClassReader(classBytes), [] as Set)
+        then:
+        touchedMethods.keySet() == [METHOD] as Set
+    }
+
+    def "test find the marker loaded by ldc_w"() {
+        given:
+        //Fill the constant pool, so the index of the marker does not fit in a byte.
+        def classBytes = createClass({ ClassWriter classWriter ->
+            300.times { classWriter.newConst("constant" + it) }
+        }) { MethodVisitor mv ->
+            mv.visitLdcInsn("constant299")
+            mv.visitInsn(Opcodes.POP)
+            mv.visitLdcInsn(MARKER)
+        }
+        def classReader = new ClassReader(classBytes)
+        when:
+        def touchedMethods = MethodMarkerScanner.findTouchedMethods(classReader, [] as Set)
+        then:
+        classReader.getItemCount() > 256
+        touchedMethods.keySet() == [METHOD] as Set
+    }
+
+    def "test rewrite all the methods if the class is malformed"(Closure<byte[]> corrupt) {
+        given:
+        def classBytes = createClass { MethodVisitor mv ->
+            4.times { mv.visitInsn(Opcodes.NOP) }
+            mv.visitLdcInsn(MARKER)
+        }
+        expect:
+        MethodMarkerScanner.findTouchedMethods(new ClassReader(corrupt(classBytes)), [] as Set) == null
+
+        where:
+        corrupt << [
+                //An unknown opcode: the first nop becomes 0xca
+                { byte[] bytes -> replaceFirst(bytes, [0, 0, 0, 0, Opcodes.LDC] as byte[], 0xca as byte) },
+                //A code length beyond the end of the class file
+                { byte[] bytes -> replaceFirst(bytes, [0, 0, 0, 7, 0, 0, 0, 0] as byte[], 0x7f as byte) }
+        ]
+    }
+
+    private static byte[] replaceFirst(byte[] bytes, byte[] pattern, byte value) {
+        def result = bytes.clone()
+        for (int i = 0; i <= bytes.length - pattern.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+                result[i] = value
+                return result
+            }
+        }
+        throw new IllegalArgumentException("Pattern not found")
+    }
+
+    private static byte[] createClass(Closure<?> body) {
+        return createClass({}, body)
+    }
+
+    /**
+     * com.test.Scanner with the static method value, the method body leaves the returned string on the stack,
+     * and a method without any marker.
+     */
+    private static byte[] createClass(Closure<?> constantPool, Closure<?> body) {
+        def classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+        classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "com/test/Scanner", null, "java/lang/Object", null)
+        constantPool.call(classWriter)
+        MethodVisitor mv = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "untouched",
+                "()Ljava/lang/String;", null, null)
+        mv.visitCode()
+        mv.visitLdcInsn("https://help.com")
+        mv.visitInsn(Opcodes.ARETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+        mv = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", "()Ljava/lang/String;",
+                null, null)
+        mv.visitCode()
+        body.call(mv)
+        mv.visitInsn(Opcodes.ARETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+        classWriter.visitEnd()
+        return classWriter.toByteArray()
+    }
+}
@@ -0,0 +1,105 @@
+package com.android.plugin.buildconfig
+
+import com.android.BuildConfigDelegate
+import com.android.plugin.buildconfig.engine.RewriteEngine
+import com.android.plugin.buildconfig.engine.RewriteOptions
+import com.android.plugin.buildconfig.engine.RewriteReport
+import com.android.plugin.buildconfig.engine.RewriteRequest
+import groovy.json.JsonSlurper
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+
+class RewriteEngineSpec extends Specification {
+    private static final String MARKER = "`BuildConfig#app#https://help.com`"
+    @Shared
+    private def fieldIndex = new BuildConfigFieldIndex([
+            new BuildConfigClassField("app", "SERVER_URL", "String", MARKER, BuildConfigClassField.NO_ID)
+    ])
+    @Rule
+    TemporaryFolder testProjectDir = new TemporaryFolder(new File("build/tmp"))
+
+    def setup() {
+        BuildConfigDelegate.reset()
+    }
+
+    def "test write a class that fails to rewrite as it is and keep going"() {
+        given:
+        def goodBytes = createClass("com/test/Good")
+        def classBytes = createClass("com/test/Broken")
+        //The constant pool still has the marker, but the methods are cut off.
+        def brokenBytes = Arrays.copyOf(classBytes, classBytes.length - 8)
+        def inputDir = testProjectDir.newFolder("input")
+        ["Good": goodBytes, "Broken": brokenBytes].each { name, bytes ->
+            def file = new File(inputDir, "com/test/${name}.class")
+            file.parentFile.mkdirs()
+            file.bytes = bytes
+        }
+        def inputJar = testProjectDir.newFile("input.jar")
+        new ZipOutputStream(new FileOutputStream(inputJar)).withCloseable { output ->
+            ["Good": goodBytes, "Broken": brokenBytes].each { name, bytes ->
+                output.putNextEntry(new ZipEntry("com/test/${name}.class"))
+                output.write(bytes)
+                output.closeEntry()
+            }
+        }
+        def outputDir = testProjectDir.newFolder("output")
+        def outputJar = new File(testProjectDir.root, "output.jar")
+        def report = new RewriteReport("test", false, 1)
+        def reportFile = new File(testProjectDir.root, "report.json")
+        when:
+        new RewriteEngine(fieldIndex, new RewriteOptions(), LazyStaticFieldIndex.EMPTY).rewrite([
+                new RewriteRequest.Directory("input", inputDir, outputDir, null),
+                new RewriteRequest.Jar("input.jar", inputJar, outputJar)
+        ], report)
+        report.write(reportFile)
+        def json = new JsonSlurper().parse(reportFile)
+        def jarEntries = new ZipFile(outputJar).withCloseable { zipFile ->
+            zipFile.entries().toList().collectEntries { [(it.name): zipFile.getInputStream(it).bytes] }
+        }
+        then:
+        new File(outputDir, "com/test/Broken.class").bytes == brokenBytes
+        jarEntries["com/test/Broken.class"] == brokenBytes
+        new File(outputDir, "com/test/Good.class").bytes != goodBytes
+        jarEntries["com/test/Good.class"] != goodBytes
+        json.classesFailed == 2
+        json.classesRewritten == 2
+        json.failedClasses*.name.sort() == ["com/test/Broken.class", "com/test/Broken.class"]
+    }
+
+    def "test the report keeps the slowest classes only"() {
+        given:
+        def report = new RewriteReport("test", false, 1)
+        def inputReport = report.newInput("input", "directory")
+        def reportFile = new File(testProjectDir.root, "report.json")
+        when:
+        //The timings arrive in a shuffled order: 0, 7, 14, ... 49, 6, 13, ...
+        (0..<50).collect { (it * 7) % 50 }.each { index ->
+            inputReport.onClassRewritten("com/test/C${index}.class", 1, [], index * 1000L)
+        }
+        report.write(reportFile)
+        then:
+        new JsonSlurper().parse(reportFile).slowestClasses*.timeUs == (49..30).toList()
+    }
+
+    /**
+     * A class with the static method value, it returns the marker.
+     */
+    private static byte[] createClass(String name) {
+        return TestClasses.createClass(Opcodes.V1_8, name) { ClassWriter cw ->
+            TestClasses.createMethod(cw, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", "()Ljava/lang/String;") {
+                MethodVisitor mv ->
+                    mv.visitLdcInsn(MARKER)
+                    mv.visitInsn(Opcodes.ARETURN)
+            }
+        }
+    }
+}
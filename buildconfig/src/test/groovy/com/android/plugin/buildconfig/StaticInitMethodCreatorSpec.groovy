@@ -0,0 +1,101 @@
+package com.android.plugin.buildconfig
+
+import com.android.BuildConfigDelegate
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
+import com.android.plugin.buildconfig.visitor.StringReplaceClassInvitor
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.FieldInsnNode
+import spock.lang.Shared
+import spock.lang.Specification
+
+class StaticInitMethodCreatorSpec extends Specification {
+    private static final String MARKER = "`BuildConfig#app#https://help.com`"
+    @Shared
+    private def fieldIndex = new BuildConfigFieldIndex([
+            new BuildConfigClassField("app", "SERVER_URL", "String", MARKER, BuildConfigClassField.NO_ID)
+    ])
+
+    def setup() {
+        BuildConfigDelegate.reset()
+        BuildConfigDelegate.setValue("app", "SERVER_URL", "https://help.com")
+    }
+
+    def "test initialize the fields before the code of the existing static constructor method"() {
+        given:
+        //static { COPY = URL; OTHER = otherValue; }
+        def classBytes = createClass { MethodVisitor mv ->
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "com/test/StaticInit", "URL", "Ljava/lang/String;")
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, "com/test/StaticInit", "COPY", "Ljava/lang/String;")
+            mv.visitLdcInsn(otherValue)
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, "com/test/StaticInit", "OTHER", "Ljava/lang/String;")
+        }
+        def rewrittenBytes = rewrite(classBytes)
+        def classNode = TestClasses.readClass(rewrittenBytes)
+        def staticInit = classNode.methods.findAll { it.name == BuildConfigConstants.CLINIT }
+        def fieldInstructions = staticInit[0].instructions.toArray().findAll { it instanceof FieldInsnNode }
+        when:
+        def clazz = new TestClassLoader().addClass("com.test.StaticInit", rewrittenBytes).load("com.test.StaticInit")
+        then:
+        staticInit.size() == 1
+        classNode.fields.find { it.name == "URL" }.value == null
+        classNode.fields.find { it.name == "PLAIN" }.value == "plain"
+        //The merged initialization comes first, then the original code.
+        fieldInstructions.collect { it.opcode + " " + it.name } == [
+                Opcodes.PUTSTATIC + " URL",
+                Opcodes.GETSTATIC + " URL",
+                Opcodes.PUTSTATIC + " COPY",
+                Opcodes.PUTSTATIC + " OTHER"
+        ]
+        clazz.getField("URL").get(null) == "https://help.com"
+        clazz.getField("PLAIN").get(null) == "plain"
+        //The original code reads the field after it was initialized.
+        clazz.getField("COPY").get(null) == "https://help.com"
+        clazz.getField("OTHER").get(null) == expectedOther
+
+        where:
+        otherValue        | expectedOther
+        "Other:" + MARKER | "Other:https://help.com"
+        "Other"           | "Other"
+    }
+
+    def "test create the static constructor method if the class does not have one"() {
+        given:
+        def rewrittenBytes = rewrite(createClass(null))
+        when:
+        def clazz = new TestClassLoader().addClass("com.test.StaticInit", rewrittenBytes).load("com.test.StaticInit")
+        then:
+        TestClasses.readClass(rewrittenBytes).methods.count { it.name == BuildConfigConstants.CLINIT } == 1
+        clazz.getField("URL").get(null) == "https://help.com"
+        clazz.getField("COPY").get(null) == null
+    }
+
+    private byte[] rewrite(byte[] classBytes) {
+        return TestClasses.rewrite(classBytes) { ClassReader classReader, ClassWriter classWriter ->
+            new StringReplaceClassInvitor(fieldIndex, ConcatStrategy.AUTO, true, true, false, classReader, classWriter)
+        }
+    }
+
+    /**
+     * com.test.StaticInit with the constant fields URL and PLAIN, the fields COPY and OTHER.
+     * @param staticInit The code of the static constructor method, null for a class without one.
+     */
+    private static byte[] createClass(Closure<?> staticInit) {
+        return TestClasses.createClass(Opcodes.V1_8, "com/test/StaticInit") { ClassWriter cw ->
+            def constant = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL
+            cw.visitField(constant, "URL", "Ljava/lang/String;", null, MARKER).visitEnd()
+            cw.visitField(constant, "PLAIN", "Ljava/lang/String;", null, "plain").visitEnd()
+            cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "COPY", "Ljava/lang/String;", null, null).visitEnd()
+            cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "OTHER", "Ljava/lang/String;", null, null).visitEnd()
+            if (null != staticInit) {
+                TestClasses.createMethod(cw, Opcodes.ACC_STATIC, BuildConfigConstants.CLINIT, "()V") {
+                    MethodVisitor mv ->
+                        staticInit.call(mv)
+                        mv.visitInsn(Opcodes.RETURN)
+                }
+            }
+        }
+    }
+}
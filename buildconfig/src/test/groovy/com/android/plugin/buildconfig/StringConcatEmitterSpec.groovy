@@ -0,0 +1,65 @@
+package com.android.plugin.buildconfig
+
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
+import com.android.plugin.buildconfig.visitor.StringConcatEmitter
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.InvokeDynamicInsnNode
+import org.objectweb.asm.tree.MethodInsnNode
+import org.objectweb.asm.tree.MethodNode
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class StringConcatEmitterSpec extends Specification {
+    private static final String MARKER = "`BuildConfig#app#https://help.com`"
+    @Shared
+    private def fieldIndex = new BuildConfigFieldIndex([
+            new BuildConfigClassField("app", "SERVER_URL", "String", MARKER, BuildConfigClassField.NO_ID)
+    ])
+
+    @Unroll
+    def "test #strategy puts #value together with #expected for the class version #classVersion"() {
+        given:
+        def methodNode = new MethodNode()
+        when:
+        def emitted = new StringConcatEmitter(fieldIndex, strategy, classVersion).emit(methodNode, value)
+        then:
+        emitted
+        concatCall(methodNode) == expected
+
+        where:
+        //AUTO never uses invokedynamic, StringConcatFactory needs API 26 or D8/R8 desugaring the call site.
+        strategy                      | classVersion | value                     | expected
+        ConcatStrategy.AUTO           | Opcodes.V1_8 | "Url:" + MARKER           | "concat"
+        ConcatStrategy.AUTO           | Opcodes.V9   | "Url:" + MARKER           | "concat"
+        ConcatStrategy.AUTO           | Opcodes.V11  | "Url:" + MARKER           | "concat"
+        ConcatStrategy.AUTO           | Opcodes.V11  | "Url:" + MARKER + "/api"  | "toString"
+        ConcatStrategy.STRING_BUILDER | Opcodes.V11  | "Url:" + MARKER           | "toString"
+        ConcatStrategy.CONCAT         | Opcodes.V11  | "Url:" + MARKER + "/api"  | "concat"
+        //INDY is only honored by the Java 9+ classes.
+        ConcatStrategy.INDY           | Opcodes.V9   | "Url:" + MARKER + "/api"  | "makeConcatWithConstants"
+        ConcatStrategy.INDY           | Opcodes.V11  | "Url:" + MARKER           | "makeConcatWithConstants"
+        ConcatStrategy.INDY           | Opcodes.V1_8 | "Url:" + MARKER           | "concat"
+        ConcatStrategy.INDY           | Opcodes.V1_8 | "Url:" + MARKER + "/api"  | "toString"
+    }
+
+    def "test a single marker is a bare delegate call with every strategy"() {
+        expect:
+        ConcatStrategy.values().every { strategy ->
+            def methodNode = new MethodNode()
+            new StringConcatEmitter(fieldIndex, strategy, Opcodes.V11).emit(methodNode, MARKER)
+            concatCall(methodNode) == BuildConfigConstants.DELEGATE_METHOD_NAME
+        }
+    }
+
+    /**
+     * The name of the last call, which leaves the result on the stack.
+     */
+    private static String concatCall(MethodNode methodNode) {
+        def instruction = methodNode.instructions.last
+        if (instruction instanceof InvokeDynamicInsnNode) {
+            return instruction.name
+        }
+        return ((MethodInsnNode) instruction).name
+    }
+}
@@ -20,7 +20,7 @@ class StringReplaceSpec extends Specification {
         given:
         def classReader = new ClassReader(file.bytes)
         def classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS)
-        def classVisitor = new StringReplaceClassInvitor("com/test", classWriter)
+        def classVisitor = new StringReplaceClassInvitor(BuildConfigFieldIndex.EMPTY, classWriter)
         classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES)
         def outputFile = outputAssetsProvider.getAssetFile(file.name)
         outputFile.bytes = classWriter.toByteArray()
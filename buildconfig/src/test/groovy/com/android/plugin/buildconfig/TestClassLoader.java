@@ -0,0 +1,49 @@
+package com.android.plugin.buildconfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Load the rewritten classes of a spec before the classes of the test class path.
+ * The classes are verified when they are loaded, the test task runs with -Xverify:all.
+ */
+public class TestClassLoader extends ClassLoader {
+    private final Map<String, byte[]> classes = new HashMap<>();
+
+    public TestClassLoader() {
+        super(TestClassLoader.class.getClassLoader());
+    }
+
+    /**
+     * @param className The binary name of the class, e.g., com.test.Constant
+     */
+    public TestClassLoader addClass(String className, byte[] bytes) {
+        classes.put(className, bytes);
+        return this;
+    }
+
+    /**
+     * Load and initialize the class, so a broken class fails right here.
+     */
+    public Class<?> load(String className) throws ClassNotFoundException {
+        return Class.forName(className, true, this);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            byte[] bytes = classes.get(name);
+            if (null == bytes) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> loadedClass = findLoadedClass(name);
+            if (null == loadedClass) {
+                loadedClass = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) {
+                resolveClass(loadedClass);
+            }
+            return loadedClass;
+        }
+    }
+}
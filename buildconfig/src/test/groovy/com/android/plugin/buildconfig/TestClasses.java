@@ -0,0 +1,77 @@
+package com.android.plugin.buildconfig;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Create, rewrite and read the test classes of the specs.
+ * Each spec only describes the shape of its own classes, the code to write and read them is shared here.
+ */
+public final class TestClasses {
+    private TestClasses() {
+    }
+
+    public interface ClassBody {
+        void visit(ClassWriter cw);
+    }
+
+    public interface MethodBody {
+        void visit(MethodVisitor mv);
+    }
+
+    public interface VisitorFactory {
+        ClassVisitor create(ClassReader classReader, ClassWriter classWriter);
+    }
+
+    /**
+     * A public class of the version that extends java.lang.Object, the max stack and locals are computed.
+     * @param name The internal name of the class, e.g., com/test/Constant
+     */
+    public static byte[] createClass(int version, String name, ClassBody body) {
+        return createClass(version, 0, name, "java/lang/Object", ClassWriter.COMPUTE_MAXS, body);
+    }
+
+    /**
+     * @param access The access flags besides public, e.g., ACC_INTERFACE
+     * @param writerFlags What the class writer computes, ClassWriter.COMPUTE_FRAMES for the classes with branches.
+     */
+    public static byte[] createClass(int version, int access, String name, String superName, int writerFlags,
+                                     ClassBody body) {
+        ClassWriter classWriter = new ClassWriter(writerFlags);
+        classWriter.visit(version, Opcodes.ACC_PUBLIC | access, name, null, superName, null);
+        body.visit(classWriter);
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * The body has to end with the return instruction, the max stack and locals are left to the class writer.
+     */
+    public static void createMethod(ClassWriter cw, int access, String name, String descriptor, MethodBody body) {
+        MethodVisitor mv = cw.visitMethod(access, name, descriptor, null, null);
+        mv.visitCode();
+        body.visit(mv);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Pass the class through the visitor the way the transform does, the existing frames are kept.
+     */
+    public static byte[] rewrite(byte[] classBytes, VisitorFactory visitorFactory) {
+        ClassReader classReader = new ClassReader(classBytes);
+        ClassWriter classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS);
+        classReader.accept(visitorFactory.create(classReader, classWriter), 0);
+        return classWriter.toByteArray();
+    }
+
+    public static ClassNode readClass(byte[] classBytes) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classBytes).accept(classNode, 0);
+        return classNode;
+    }
+}
@@ -0,0 +1,86 @@
+package com.android.plugin.buildconfig
+
+import com.android.plugin.buildconfig.engine.RewriteOptions
+import com.android.plugin.buildconfig.transform.TransformFingerprint
+import com.android.plugin.buildconfig.visitor.ConcatStrategy
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class TransformFingerprintSpec extends Specification {
+    @Rule
+    TemporaryFolder testProjectDir = new TemporaryFolder(new File("build/tmp"))
+
+    def "test the same field table and options stay incremental"() {
+        given:
+        def file = new File(testProjectDir.root, "transform.fingerprint")
+        new TransformFingerprint(file, "fields", options([:])).write()
+        expect:
+        new TransformFingerprint(file, "fields", options([:])).isIncremental(true)
+        !new TransformFingerprint(file, "fields", options([:])).isIncremental(false)
+    }
+
+    def "test the first run is a full run"() {
+        given:
+        def file = new File(testProjectDir.root, "transform.fingerprint")
+        expect:
+        !new TransformFingerprint(file, "fields", options([:])).isIncremental(true)
+    }
+
+    def "test a changed field table forces a full run"() {
+        given:
+        def file = new File(testProjectDir.root, "transform.fingerprint")
+        new TransformFingerprint(file, "fields1", options([:])).write()
+        expect:
+        !new TransformFingerprint(file, "fields2", options([:])).isIncremental(true)
+    }
+
+    @Unroll
+    def "test changing #option forces a full run"(String option, Object value) {
+        given:
+        def file = new File(testProjectDir.root, "transform.fingerprint")
+        //The first run
+        new TransformFingerprint(file, "fields", options([:])).write()
+        when:
+        //The second run flips the option
+        def fingerprint = new TransformFingerprint(file, "fields", options([(option): value]))
+        then:
+        !fingerprint.isIncremental(true)
+        when:
+        //The third run flips it back
+        fingerprint.write()
+        then:
+        !new TransformFingerprint(file, "fields", options([:])).isIncremental(true)
+
+        where:
+        option             | value
+        "passThrough"      | true
+        "concatStrategy"   | ConcatStrategy.STRING_BUILDER
+        "callSiteCache"    | false
+        "loopSiteCache"    | false
+        "lazyStaticFields" | true
+    }
+
+    def "test the options that do not change the output stay incremental"() {
+        given:
+        def file = new File(testProjectDir.root, "transform.fingerprint")
+        new TransformFingerprint(file, "fields", options([:])).write()
+        expect:
+        new TransformFingerprint(file, "fields", options([workerCount: 1, cacheSize: 0L])).isIncremental(true)
+    }
+
+    private static RewriteOptions options(Map<String, Object> changes) {
+        def defaults = new RewriteOptions()
+        return new RewriteOptions(
+                changes.getOrDefault("workerCount", defaults.workerCount) as int,
+                defaults.cacheDir,
+                changes.getOrDefault("cacheSize", defaults.cacheSize) as long,
+                changes.getOrDefault("concatStrategy", defaults.concatStrategy),
+                changes.getOrDefault("callSiteCache", defaults.callSiteCache) as boolean,
+                changes.getOrDefault("loopSiteCache", defaults.loopSiteCache) as boolean,
+                changes.getOrDefault("passThrough", defaults.passThrough) as boolean,
+                changes.getOrDefault("lazyStaticFields", defaults.lazyStaticFields) as boolean
+        )
+    }
+}